@@ -1,10 +1,17 @@
 package mpicbg.stitching.fusion;
 
-public class AveragePixelFusion implements PixelFusion
+import java.util.Arrays;
+
+public class AveragePixelFusion implements RowPixelFusion
 {
 	double avg;
 	int count;
 	
+	// for whole rows, the counts are double as well so that the loops have no mixed arithmetic (see RowKernels)
+	double[] sums = new double[ 0 ];
+	double[] counts = new double[ 0 ];
+	int rowLength = 0;
+	
 	public AveragePixelFusion() { clear(); }
 	
 	@Override
@@ -32,4 +39,32 @@ public class AveragePixelFusion implements PixelFusion
 	@Override
 	public PixelFusion copy() { return new AveragePixelFusion(); }
 
+	@Override
+	public void clearRow( final int length )
+	{
+		if ( sums.length < length )
+		{
+			sums = new double[ length ];
+			counts = new double[ length ];
+		}
+		else
+		{
+			Arrays.fill( sums, 0, length, 0 );
+			Arrays.fill( counts, 0, length, 0 );
+		}
+		
+		rowLength = length;
+	}
+
+	@Override
+	public void addValues( final float[] values, final int start, final int length, final int imageId, final float[] localPosition, final float[] localStep )
+	{
+		RowKernels.addAndCount( sums, counts, values, start, length );
+	}
+
+	@Override
+	public void getValues( final float[] row )
+	{
+		RowKernels.divide( sums, counts, row, rowLength, 1 );
+	}
 }
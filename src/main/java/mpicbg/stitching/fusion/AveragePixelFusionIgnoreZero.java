@@ -14,6 +14,12 @@ public class AveragePixelFusionIgnoreZero extends AveragePixelFusion
 		}
 	}
 
+	@Override
+	public void addValues( final float[] values, final int start, final int length, final int imageId, final float[] localPosition, final float[] localStep )
+	{
+		RowKernels.addAndCountNonZero( sums, counts, values, start, length );
+	}
+
 	@Override
 	public PixelFusion copy() { return new AveragePixelFusionIgnoreZero(); }
 }
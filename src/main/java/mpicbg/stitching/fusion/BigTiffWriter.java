@@ -0,0 +1,493 @@
+package mpicbg.stitching.fusion;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+import mpicbg.imglib.multithreading.SimpleMultiThreading;
+import mpicbg.imglib.type.numeric.RealType;
+import mpicbg.imglib.type.numeric.integer.UnsignedByteType;
+import mpicbg.imglib.type.numeric.integer.UnsignedShortType;
+
+/**
+ * Writes planes as tiled BigTIFF (so planes can be larger than 4 GB) with a pyramid of downsampled versions.
+ * Every plane is one page, the downsampled levels are stored as SubIFDs of the page (like OME-TIFF does), so
+ * viewers only need to read the tiles and the resolution they actually show.
+ * The plane is streamed band by band (one row of tiles), the tiles of a band are compressed in parallel and
+ * each band is averaged 2x2 into the next level while it is written, so only one band per level is in memory.
+ */
+public class BigTiffWriter
+{
+	/**
+	 * The size of the tiles, has to be a multiple of 16
+	 */
+	public static int tileSize = 256;
+
+	/**
+	 * Compress the tiles with deflate (zip)
+	 */
+	public static boolean compress = true;
+
+	/**
+	 * Provides the rows of the plane that is written
+	 */
+	public interface RowSource
+	{
+		/**
+		 * @param y - the row
+		 * @param row - the values of the whole row, has the width of the plane
+		 */
+		public void readRow( int y, float[] row );
+	}
+
+	// TIFF tags and types
+	final static int NEW_SUBFILE_TYPE = 254, IMAGE_WIDTH = 256, IMAGE_LENGTH = 257, BITS_PER_SAMPLE = 258, COMPRESSION = 259,
+			PHOTOMETRIC = 262, SAMPLES_PER_PIXEL = 277, PLANAR_CONFIGURATION = 284, TILE_WIDTH = 322, TILE_LENGTH = 323,
+			TILE_OFFSETS = 324, TILE_BYTE_COUNTS = 325, SUB_IFDS = 330, SAMPLE_FORMAT = 339;
+	final static int SHORT = 3, LONG = 4, LONG8 = 16, IFD8 = 18;
+
+	final RandomAccessFile out;
+	final int bytesPerPixel, sampleFormat;
+
+	// where the pointer to the next page has to be written
+	long nextIFDPointer = 8;
+
+	/**
+	 * Creates the file and writes the header
+	 *
+	 * @param file - the file, will be overwritten
+	 * @param type - {@link UnsignedByteType}, {@link UnsignedShortType} or float
+	 * @throws IOException
+	 */
+	public BigTiffWriter( final File file, final RealType< ? > type ) throws IOException
+	{
+		if ( type instanceof UnsignedByteType )
+		{
+			bytesPerPixel = 1;
+			sampleFormat = 1;
+		}
+		else if ( type instanceof UnsignedShortType )
+		{
+			bytesPerPixel = 2;
+			sampleFormat = 1;
+		}
+		else
+		{
+			bytesPerPixel = 4;
+			sampleFormat = 3;
+		}
+
+		out = new RandomAccessFile( file, "rw" );
+
+		try
+		{
+			out.setLength( 0 );
+
+			// little-endian BigTIFF, 8 byte offsets, the first IFD is not known yet
+			final ByteBuffer header = newBuffer( 16 );
+			header.put( (byte)'I' ).put( (byte)'I' ).putShort( (short)43 ).putShort( (short)8 ).putShort( (short)0 ).putLong( 0 );
+			out.write( header.array() );
+		}
+		catch ( IOException e )
+		{
+			out.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Writes one plane with all its downsampled levels as the next page of the file
+	 *
+	 * @param source - the rows of the plane
+	 * @param width - the width of the plane
+	 * @param height - the height of the plane
+	 * @throws IOException
+	 */
+	public void writePlane( final RowSource source, final int width, final int height ) throws IOException
+	{
+		// all levels until the plane fits into one tile
+		final ArrayList< Level > levels = new ArrayList< Level >();
+		int w = width, h = height;
+
+		do
+		{
+			levels.add( new Level( w, h ) );
+			w = ( w + 1 ) / 2;
+			h = ( h + 1 ) / 2;
+		}
+		while ( levels.get( levels.size() - 1 ).width > tileSize || levels.get( levels.size() - 1 ).height > tileSize );
+
+		// stream the plane through the levels
+		final float[] row = new float[ width ];
+
+		for ( int y = 0; y < height; ++y )
+		{
+			source.readRow( y, row );
+			addRow( levels, 0, row );
+		}
+
+		// the downsampled levels as SubIFDs, then the page itself
+		final long[] subIFDs = new long[ levels.size() - 1 ];
+
+		for ( int l = 1; l < levels.size(); ++l )
+			subIFDs[ l - 1 ] = writeIFD( levels.get( l ), true, null );
+
+		final long ifd = writeIFD( levels.get( 0 ), false, subIFDs );
+
+		// link the previous page to this one
+		writeLong( nextIFDPointer, ifd );
+		nextIFDPointer = ifd + 8 + getNumEntries( false, subIFDs.length > 0 ) * 20;
+	}
+
+	/**
+	 * Writes a plane that is stored in a byte[], short[] or float[]
+	 *
+	 * @param plane - the pixels
+	 * @param width - the width of the plane
+	 * @param height - the height of the plane
+	 * @throws IOException
+	 */
+	public void writePlane( final Object plane, final int width, final int height ) throws IOException
+	{
+		writePlane( new RowSource()
+		{
+			@Override
+			public void readRow( final int y, final float[] row ) { RowAccess.read( plane, y * width, row, 0, width ); }
+		}, width, height );
+	}
+
+	/**
+	 * Closes the file
+	 *
+	 * @throws IOException
+	 */
+	public void close() throws IOException
+	{
+		out.close();
+	}
+
+	/**
+	 * Writes all planes of a {@link CellFusionOutput} into one file, every z-plane is one page
+	 *
+	 * @param file - the file, will be overwritten
+	 * @param cells - the fused image
+	 * @param type - the type of the file
+	 * @throws IOException
+	 */
+	public static void write( final File file, final CellFusionOutput cells, final RealType< ? > type ) throws IOException
+	{
+		final int[] size = cells.getDimensions();
+		final int[] pos = new int[ size.length ];
+		final BigTiffWriter writer = new BigTiffWriter( file, type );
+
+		try
+		{
+			for ( int z = 0; z < ( size.length == 3 ? size[ 2 ] : 1 ); ++z )
+			{
+				if ( size.length == 3 )
+					pos[ 2 ] = z;
+
+				writer.writePlane( new RowSource()
+				{
+					@Override
+					public void readRow( final int y, final float[] row )
+					{
+						pos[ 1 ] = y;
+						cells.readRow( pos, row, 0, size[ 0 ] );
+					}
+				}, size[ 0 ], size[ 1 ] );
+			}
+		}
+		finally
+		{
+			writer.close();
+		}
+	}
+
+	/**
+	 * One resolution level, keeps the band of rows that is not written yet
+	 */
+	protected class Level
+	{
+		final int width, height, tilesX, tilesY;
+		final float[] band;
+		final long[] offsets, byteCounts;
+
+		// how many rows are in the band, how many rows of the level are done
+		int rowsInBand = 0, y = 0;
+
+		public Level( final int width, final int height )
+		{
+			this.width = width;
+			this.height = height;
+			this.tilesX = ( width + tileSize - 1 ) / tileSize;
+			this.tilesY = ( height + tileSize - 1 ) / tileSize;
+			this.band = new float[ width * tileSize ];
+			this.offsets = new long[ tilesX * tilesY ];
+			this.byteCounts = new long[ tilesX * tilesY ];
+		}
+	}
+
+	protected void addRow( final ArrayList< Level > levels, final int l, final float[] row ) throws IOException
+	{
+		final Level level = levels.get( l );
+
+		System.arraycopy( row, 0, level.band, level.rowsInBand * level.width, level.width );
+		++level.rowsInBand;
+		++level.y;
+
+		if ( level.rowsInBand < tileSize && level.y < level.height )
+			return;
+
+		writeBand( level );
+
+		// average 2x2 pixels into the next level
+		if ( l + 1 < levels.size() )
+		{
+			final Level next = levels.get( l + 1 );
+			final float[] nextRow = new float[ next.width ];
+			final boolean integer = bytesPerPixel < 4;
+
+			for ( int r = 0; r < level.rowsInBand; r += 2 )
+			{
+				final int i0 = r * level.width;
+				final int i1 = Math.min( r + 1, level.rowsInBand - 1 ) * level.width;
+
+				for ( int x = 0; x < next.width; ++x )
+				{
+					final int x0 = x * 2;
+					final int x1 = Math.min( x0 + 1, level.width - 1 );
+					final float v = ( level.band[ i0 + x0 ] + level.band[ i0 + x1 ] + level.band[ i1 + x0 ] + level.band[ i1 + x1 ] ) / 4;
+
+					nextRow[ x ] = integer ? RowAccess.round( v ) : v;
+				}
+
+				addRow( levels, l + 1, nextRow );
+			}
+		}
+
+		level.rowsInBand = 0;
+	}
+
+	/**
+	 * Compresses the tiles of the band in parallel and writes them in order
+	 */
+	protected void writeBand( final Level level ) throws IOException
+	{
+		final int tileY = ( level.y - 1 ) / tileSize;
+		final byte[][] tiles = new byte[ level.tilesX ][];
+
+		final AtomicInteger ai = new AtomicInteger( 0 );
+		final Thread[] threads = SimpleMultiThreading.newThreads( Math.min( level.tilesX, SimpleMultiThreading.newThreads().length ) );
+
+		for (int ithread = 0; ithread < threads.length; ++ithread)
+			threads[ithread] = new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					final ByteBuffer raw = newBuffer( tileSize * tileSize * bytesPerPixel );
+					final Deflater deflater = compress ? new Deflater() : null;
+
+					for ( int tileX = ai.getAndIncrement(); tileX < level.tilesX; tileX = ai.getAndIncrement() )
+					{
+						encodeTile( level, tileX, raw );
+
+						if ( deflater == null )
+						{
+							tiles[ tileX ] = raw.array().clone();
+						}
+						else
+						{
+							tiles[ tileX ] = deflate( raw.array(), deflater );
+							deflater.reset();
+						}
+					}
+
+					if ( deflater != null )
+						deflater.end();
+				}
+			});
+
+		SimpleMultiThreading.startAndJoin( threads );
+
+		for ( int tileX = 0; tileX < level.tilesX; ++tileX )
+		{
+			final int i = tileY * level.tilesX + tileX;
+
+			level.offsets[ i ] = out.length();
+			level.byteCounts[ i ] = tiles[ tileX ].length;
+
+			out.seek( level.offsets[ i ] );
+			out.write( tiles[ tileX ] );
+		}
+	}
+
+	/**
+	 * Converts one tile of the band into little-endian pixels, the parts outside of the image are 0
+	 */
+	protected void encodeTile( final Level level, final int tileX, final ByteBuffer raw )
+	{
+		raw.clear();
+
+		final int x0 = tileX * tileSize;
+		final int n = Math.min( tileSize, level.width - x0 );
+
+		for ( int r = 0; r < tileSize; ++r )
+		{
+			final int i = r * level.width + x0;
+
+			for ( int x = 0; x < tileSize; ++x )
+			{
+				final float v = r < level.rowsInBand && x < n ? level.band[ i + x ] : 0;
+
+				if ( bytesPerPixel == 1 )
+					raw.put( (byte)RowAccess.round( v ) );
+				else if ( bytesPerPixel == 2 )
+					raw.putShort( (short)RowAccess.round( v ) );
+				else
+					raw.putFloat( v );
+			}
+		}
+	}
+
+	protected static byte[] deflate( final byte[] data, final Deflater deflater )
+	{
+		deflater.setInput( data );
+		deflater.finish();
+
+		byte[] buffer = new byte[ data.length / 2 + 64 ];
+		int length = 0;
+
+		while ( !deflater.finished() )
+		{
+			if ( length == buffer.length )
+				buffer = Arrays.copyOf( buffer, buffer.length * 2 );
+
+			length += deflater.deflate( buffer, length, buffer.length - length );
+		}
+
+		return Arrays.copyOf( buffer, length );
+	}
+
+	protected static int getNumEntries( final boolean reduced, final boolean hasSubIFDs )
+	{
+		return 13 + ( hasSubIFDs && !reduced ? 1 : 0 );
+	}
+
+	/**
+	 * Writes the IFD of a level at the end of the file
+	 *
+	 * @return - the position of the IFD
+	 */
+	protected long writeIFD( final Level level, final boolean reduced, final long[] subIFDs ) throws IOException
+	{
+		final int numTiles = level.offsets.length;
+		final boolean hasSubIFDs = subIFDs != null && subIFDs.length > 0;
+		final int numEntries = getNumEntries( reduced, hasSubIFDs );
+
+		// IFDs have to start at a word boundary
+		if ( out.length() % 2 == 1 )
+		{
+			out.seek( out.length() );
+			out.write( 0 );
+		}
+
+		// arrays that do not fit into an entry are written behind the IFD
+		final long ifd = out.length();
+		long extra = ifd + 8 + numEntries * 20 + 8;
+
+		final ByteBuffer entries = newBuffer( 8 + numEntries * 20 + 8 );
+		final ByteBuffer data = newBuffer( numTiles * 16 + ( hasSubIFDs ? subIFDs.length * 8 : 0 ) );
+
+		entries.putLong( numEntries );
+		putEntry( entries, NEW_SUBFILE_TYPE, LONG, 1, reduced ? 1 : 0 );
+		putEntry( entries, IMAGE_WIDTH, LONG, 1, level.width );
+		putEntry( entries, IMAGE_LENGTH, LONG, 1, level.height );
+		putEntry( entries, BITS_PER_SAMPLE, SHORT, 1, bytesPerPixel * 8 );
+		putEntry( entries, COMPRESSION, SHORT, 1, compress ? 8 : 1 );
+		putEntry( entries, PHOTOMETRIC, SHORT, 1, 1 );
+		putEntry( entries, SAMPLES_PER_PIXEL, SHORT, 1, 1 );
+		putEntry( entries, PLANAR_CONFIGURATION, SHORT, 1, 1 );
+		putEntry( entries, TILE_WIDTH, LONG, 1, tileSize );
+		putEntry( entries, TILE_LENGTH, LONG, 1, tileSize );
+
+		if ( numTiles == 1 )
+		{
+			putEntry( entries, TILE_OFFSETS, LONG8, 1, level.offsets[ 0 ] );
+			putEntry( entries, TILE_BYTE_COUNTS, LONG8, 1, level.byteCounts[ 0 ] );
+		}
+		else
+		{
+			putEntry( entries, TILE_OFFSETS, LONG8, numTiles, extra );
+			for ( final long offset : level.offsets )
+				data.putLong( offset );
+			extra += numTiles * 8;
+
+			putEntry( entries, TILE_BYTE_COUNTS, LONG8, numTiles, extra );
+			for ( final long count : level.byteCounts )
+				data.putLong( count );
+			extra += numTiles * 8;
+		}
+
+		if ( hasSubIFDs )
+		{
+			if ( subIFDs.length == 1 )
+			{
+				putEntry( entries, SUB_IFDS, IFD8, 1, subIFDs[ 0 ] );
+			}
+			else
+			{
+				putEntry( entries, SUB_IFDS, IFD8, subIFDs.length, extra );
+				for ( final long subIFD : subIFDs )
+					data.putLong( subIFD );
+			}
+		}
+
+		putEntry( entries, SAMPLE_FORMAT, SHORT, 1, sampleFormat );
+
+		// no next IFD (yet)
+		entries.putLong( 0 );
+
+		out.seek( ifd );
+		out.write( entries.array() );
+		out.write( data.array(), 0, data.position() );
+
+		return ifd;
+	}
+
+	protected static void putEntry( final ByteBuffer buffer, final int tag, final int type, final long count, final long value )
+	{
+		buffer.putShort( (short)tag );
+		buffer.putShort( (short)type );
+		buffer.putLong( count );
+
+		// values are left-aligned in the 8 bytes
+		if ( type == SHORT )
+			buffer.putShort( (short)value ).putShort( (short)0 ).putInt( 0 );
+		else if ( type == LONG )
+			buffer.putInt( (int)value ).putInt( 0 );
+		else
+			buffer.putLong( value );
+	}
+
+	protected void writeLong( final long position, final long value ) throws IOException
+	{
+		final ByteBuffer buffer = newBuffer( 8 );
+		buffer.putLong( value );
+
+		out.seek( position );
+		out.write( buffer.array() );
+	}
+
+	protected static ByteBuffer newBuffer( final int size )
+	{
+		return ByteBuffer.allocate( size ).order( ByteOrder.LITTLE_ENDIAN );
+	}
+}
@@ -1,21 +1,39 @@
 package mpicbg.stitching.fusion;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 
-public class BlendingPixelFusion implements PixelFusion
+public class BlendingPixelFusion implements RowPixelFusion
 {
 	public static double fractionBlended = 0.2;
 	
+	/**
+	 * The number of entries of the cosine lookup table, the linear interpolation between
+	 * entries deviates less than 1e-7 from the exact weight
+	 */
+	public static int cosineTableSize = 4096;
+	
 	final int numDimensions;
 	final int numImages;
 	final int[][] dimensions;
 	final float percentScaling;
 	final float[] border;
 	
+	// the size of the blending area for each image and dimension and its inverse
+	final float[][] blendArea, blendAreaInv;
+	
+	// ( cos( ( 1 - i / size ) * PI ) + 1 ) / 2
+	final double[] cosineTable;
+	
 	final ArrayList< ? extends ImageInterpolation< ? > > images;
 
 	double valueSum, weightSum;
 	
+	// for whole rows (see RowKernels)
+	double[] valueSums = new double[ 0 ], weightSums = new double[ 0 ], weights = new double[ 0 ];
+	float[] location;
+	int rowLength = 0;
+	
 	/**
 	 * Instantiates the per-pixel blending
 	 * 
@@ -23,33 +41,86 @@ public class BlendingPixelFusion implements PixelFusion
 	 */
 	public BlendingPixelFusion( final ArrayList< ? extends ImageInterpolation< ? > > images )
 	{
-		this( images, (float)fractionBlended );
+		this( images, TileIndex.getImageSizes( images ), (float)fractionBlended );
+	}	
+	
+	/**
+	 * Instantiates the per-pixel blending if only the size of the images is known
+	 * 
+	 * @param imgSizes - the dimensions of all input images imgSizes[ image ][ x, y, (z) ] (the position has to be the same as Id provided by addValue!)
+	 */
+	public BlendingPixelFusion( final int[][] imgSizes )
+	{
+		this( null, imgSizes, (float)fractionBlended );
 	}	
+	
 	/**
 	 * Instantiates the per-pixel blending
 	 * 
-	 * @param images - all input images (the position in the list has to be the same as Id provided by addValue!)
+	 * @param images - all input images, can be null
+	 * @param imgSizes - the dimensions of all input images imgSizes[ image ][ x, y, (z) ]
 	 * @param percentScaling - which percentage of the image should be blended ( e.g. 0,3 means 15% on the left and 15% on the right)
 	 */
-	private BlendingPixelFusion( final ArrayList< ? extends ImageInterpolation< ? > > images, final float fractionBlended )
+	private BlendingPixelFusion( final ArrayList< ? extends ImageInterpolation< ? > > images, final int[][] imgSizes, final float fractionBlended )
 	{
 		this.images = images;
 		this.percentScaling = fractionBlended;
 		
-		this.numDimensions = images.get( 0 ).getImage().getNumDimensions();
-		this.numImages = images.size();
+		this.numDimensions = imgSizes[ 0 ].length;
+		this.numImages = imgSizes.length;
 		this.dimensions = new int[ numImages ][ numDimensions ];
 		
 		for ( int i = 0; i < numImages; ++i )
 			for ( int d = 0; d < numDimensions; ++d )
-				dimensions[ i ][ d ] = images.get( i ).getImage().getDimension( d ) - 1; 
+				dimensions[ i ][ d ] = imgSizes[ i ][ d ] - 1; 
 
 		this.border = new float[ numDimensions ];
+		this.location = new float[ numDimensions ];
+
+		// everything that does not depend on the location is computed only once
+		this.blendArea = new float[ numImages ][ numDimensions ];
+		this.blendAreaInv = new float[ numImages ][ numDimensions ];
+		
+		for ( int i = 0; i < numImages; ++i )
+			for ( int d = 0; d < numDimensions; ++d )
+			{
+				blendArea[ i ][ d ] = Math.round( percentScaling * 0.5f * dimensions[ i ][ d ] );
+				blendAreaInv[ i ][ d ] = blendArea[ i ][ d ] > 0 ? 1.0f / blendArea[ i ][ d ] : 0;
+			}
+		
+		this.cosineTable = new double[ cosineTableSize + 2 ];
+		
+		for ( int i = 0; i <= cosineTableSize; ++i )
+			cosineTable[ i ] = ( Math.cos( ( 1 - (double)i / cosineTableSize ) * Math.PI ) + 1 ) / 2;
+		
+		// so that the interpolation at the last entry does not need a special case
+		cosineTable[ cosineTableSize + 1 ] = cosineTable[ cosineTableSize ];
 
 		// reset
 		clear();
 	}
 	
+	/**
+	 * Instantiates a copy that shares all lookup tables with another {@link BlendingPixelFusion}
+	 * 
+	 * @param fusion - the instance to copy
+	 */
+	protected BlendingPixelFusion( final BlendingPixelFusion fusion )
+	{
+		this.images = fusion.images;
+		this.percentScaling = fusion.percentScaling;
+		this.numDimensions = fusion.numDimensions;
+		this.numImages = fusion.numImages;
+		this.dimensions = fusion.dimensions;
+		this.border = fusion.border;
+		this.blendArea = fusion.blendArea;
+		this.blendAreaInv = fusion.blendAreaInv;
+		this.cosineTable = fusion.cosineTable;
+		this.location = new float[ numDimensions ];
+		
+		clear();
+	}
+	
 	@Override
 	public void clear() { valueSum = weightSum = 0;	}
 
@@ -57,7 +128,7 @@ public class BlendingPixelFusion implements PixelFusion
 	public void addValue( final float value, final int imageId, final float[] localPosition ) 
 	{
 		// we are always inside the image, so we do not want 0.0
-		final double weight = Math.max( 0.00001, computeWeight( localPosition, dimensions[ imageId ], border, percentScaling ) );
+		final double weight = Math.max( 0.00001, computeWeight( localPosition, imageId ) );
 		
 		weightSum += weight;
 		valueSum += value * weight;
@@ -72,7 +143,117 @@ public class BlendingPixelFusion implements PixelFusion
 	}
 
 	@Override
-	public PixelFusion copy() { return new BlendingPixelFusion( images ); }
+	public PixelFusion copy() { return new BlendingPixelFusion( this ); }
+
+	@Override
+	public void clearRow( final int length )
+	{
+		if ( valueSums.length < length )
+		{
+			valueSums = new double[ length ];
+			weightSums = new double[ length ];
+			weights = new double[ length ];
+		}
+		else
+		{
+			Arrays.fill( valueSums, 0, length, 0 );
+			Arrays.fill( weightSums, 0, length, 0 );
+		}
+		
+		rowLength = length;
+	}
+
+	@Override
+	public void addValues( final float[] values, final int start, final int length, final int imageId, final float[] localPosition, final float[] localStep )
+	{
+		// first the weights (table lookups), then the arithmetic that can be vectorized
+		computeWeights( start, length, imageId, localPosition, localStep, weights );
+		addValues( values, start, length, weights );
+	}
+
+	/**
+	 * Computes the weights of a run of pixels once, so that they can be used for several channels with {@link #addValues(float[], int, int, double[])}
+	 * 
+	 * @param start - the first pixel of the run
+	 * @param length - the number of pixels of the run
+	 * @param imageId - from which input image as defined by the id
+	 * @param localPosition - the position of the first value of the run inside the input image in local coordinates
+	 * @param localStep - how much the local position changes from one pixel of the run to the next
+	 * @param weights - the weights, weights[ x ] belongs to pixel x of the output row
+	 */
+	public void computeWeights( final int start, final int length, final int imageId, final float[] localPosition, final float[] localStep, final double[] weights )
+	{
+		for ( int i = 0; i < length; ++i )
+		{
+			for ( int d = 0; d < numDimensions; ++d )
+				location[ d ] = localPosition[ d ] + i * localStep[ d ];
+			
+			// we are always inside the image, so we do not want 0.0
+			weights[ start + i ] = Math.max( 0.00001, computeWeight( location, imageId ) );
+		}
+	}
+	
+	/**
+	 * Adds a run of values with weights computed by {@link #computeWeights(int, int, int, float[], float[], double[])}
+	 * 
+	 * @param values - the image intensities, values[ x ] belongs to pixel x of the output row
+	 * @param start - the first pixel of the run
+	 * @param length - the number of pixels of the run
+	 * @param weights - the weights, weights[ x ] belongs to pixel x of the output row
+	 */
+	public void addValues( final float[] values, final int start, final int length, final double[] weights )
+	{
+		RowKernels.addWeighted( valueSums, weightSums, values, weights, start, length );
+	}
+
+	@Override
+	public void getValues( final float[] row )
+	{
+		// every weight is at least 0.00001, a sum of 0 means no value
+		RowKernels.divide( valueSums, weightSums, row, rowLength, 0.00001 );
+	}
+
+	/**
+	 * Same as {@link #computeWeight(float[], int[], float[], float)}, but uses the precomputed
+	 * blending areas of the image and looks up the cosine
+	 * 
+	 * @param location - the local position inside the image
+	 * @param imageId - which image
+	 * @return - the weight
+	 */
+	final protected double computeWeight( final float[] location, final int imageId )
+	{
+		final int[] dim = dimensions[ imageId ];
+		final float[] area = blendArea[ imageId ];
+		final float[] areaInv = blendAreaInv[ imageId ];
+		
+		// compute multiplicative distance to the respective borders [0...1]
+		double minDistance = 1;
+		
+		for ( int d = 0; d < numDimensions; ++d )
+		{
+			// the position in the image
+			final double localImgPos = location[ d ];
+			
+			// the distance to the border that is closer
+			final double value = Math.max( 1, Math.min( localImgPos - border[ d ] + 1, (dim[ d ] - 1) - localImgPos - border[ d ] + 1 ) );
+			
+			if ( value < area[ d ] )
+				minDistance *= value * areaInv[ d ];
+		}
+		
+		if ( minDistance == 1 )
+			return 1;
+		else if ( minDistance <= 0 )
+			return 0.0000001;
+		
+		// linear interpolation in the cosine table
+		final double pos = minDistance * cosineTableSize;
+		final int i = (int)pos;
+		final double f = pos - i;
+		
+		return cosineTable[ i ] + f * ( cosineTable[ i + 1 ] - cosineTable[ i ] );
+	}
 
 	/**
 	 * From SPIM Registration
@@ -14,13 +14,33 @@ public class BlendingPixelFusionIgnoreZero extends BlendingPixelFusion
 		super( images );
 	}	
 
+	/**
+	 * Instantiates the per-pixel blending if only the size of the images is known
+	 * 
+	 * @param imgSizes - the dimensions of all input images imgSizes[ image ][ x, y, (z) ] (the position has to be the same as Id provided by addValue!)
+	 */
+	public BlendingPixelFusionIgnoreZero( final int[][] imgSizes )
+	{
+		super( imgSizes );
+	}	
+
+	/**
+	 * Instantiates a copy that shares all lookup tables with another {@link BlendingPixelFusionIgnoreZero}
+	 * 
+	 * @param fusion - the instance to copy
+	 */
+	protected BlendingPixelFusionIgnoreZero( final BlendingPixelFusionIgnoreZero fusion )
+	{
+		super( fusion );
+	}
+
 	@Override
 	public void addValue( final float value, final int imageId, final float[] localPosition ) 
 	{
 		if ( value != 0.0 )
 		{
 			// we are always inside the image, so we do not want 0.0
-			final double weight = Math.max( 0.00001, computeWeight( localPosition, dimensions[ imageId ], border, percentScaling ) );
+			final double weight = Math.max( 0.00001, computeWeight( localPosition, imageId ) );
 			
 			weightSum += weight;
 			valueSum += value * weight;
@@ -28,5 +48,11 @@ public class BlendingPixelFusionIgnoreZero extends BlendingPixelFusion
 	}
 
 	@Override
-	public PixelFusion copy() { return new BlendingPixelFusionIgnoreZero( images ); }
+	public void addValues( final float[] values, final int start, final int length, final double[] weights )
+	{
+		RowKernels.addWeightedNonZero( valueSums, weightSums, values, weights, start, length );
+	}
+
+	@Override
+	public PixelFusion copy() { return new BlendingPixelFusionIgnoreZero( this ); }
 }
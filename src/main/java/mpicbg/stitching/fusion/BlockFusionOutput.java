@@ -0,0 +1,22 @@
+package mpicbg.stitching.fusion;
+
+/**
+ * A {@link FusionOutput} that is organized in blocks. The fusion uses exactly these blocks (so one block is
+ * always fused by one thread) and tells the output when a block is complete.
+ */
+public interface BlockFusionOutput extends FusionOutput
+{
+	/**
+	 * @return - the size of the blocks the fusion has to use
+	 */
+	public int[] getBlockSize();
+
+	/**
+	 * Called by the thread that fused the block once all of its rows are written. Blocks that are not covered by
+	 * any tile are not fused at all.
+	 *
+	 * @param min - the first pixel of the block (inclusive)
+	 * @param max - the last pixel of the block (inclusive)
+	 */
+	public void finishBlock( int[] min, int[] max );
+}
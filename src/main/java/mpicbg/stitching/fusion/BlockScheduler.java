@@ -0,0 +1,89 @@
+package mpicbg.stitching.fusion;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands out the blocks of a {@link TileIndex} to the fusion threads one by one. Every thread takes the next
+ * block as soon as it is done with the previous one, so that no thread runs out of work while others still
+ * have a long list of expensive blocks (like with a fixed chunk per thread). Blocks where many tiles overlap
+ * are handed out first, blocks without any tile are skipped as there is nothing to do (unless they are
+ * explicitly selected, e.g. to clear them when fusing again).
+ */
+public class BlockScheduler
+{
+	// the blocks in the order they are processed
+	final int[] order;
+	final AtomicInteger next = new AtomicInteger( 0 );
+
+	/**
+	 * @param index - the index of the output image
+	 */
+	public BlockScheduler( final TileIndex index )
+	{
+		this( index, null );
+	}
+
+	/**
+	 * @param index - the index of the output image
+	 * @param selected - only these blocks are processed, also if there is no tile in them, or null for all blocks with tiles
+	 */
+	public BlockScheduler( final TileIndex index, final boolean[] selected )
+	{
+		final int numBlocks = index.getNumBlocks();
+		final int maxTiles = index.getMaxTilesPerBlock();
+
+		// sort by number of tiles (descending), otherwise keep the raster order
+		final int[] count = new int[ maxTiles + 2 ];
+
+		for ( int b = 0; b < numBlocks; ++b )
+			if ( isProcessed( index, selected, b ) )
+				++count[ maxTiles - index.getTiles( b ).length + 1 ];
+
+		// the start of each group, blocks without tiles are the last group
+		for ( int i = 1; i < count.length; ++i )
+			count[ i ] += count[ i - 1 ];
+
+		this.order = new int[ count[ maxTiles + 1 ] ];
+
+		for ( int b = 0; b < numBlocks; ++b )
+			if ( isProcessed( index, selected, b ) )
+				order[ count[ maxTiles - index.getTiles( b ).length ]++ ] = b;
+	}
+
+	protected static boolean isProcessed( final TileIndex index, final boolean[] selected, final int block )
+	{
+		if ( selected == null )
+			return index.getTiles( block ).length > 0;
+		else
+			return selected[ block ];
+	}
+
+	/**
+	 * @return - the next block to process or -1 if all blocks are done
+	 */
+	public int nextBlock()
+	{
+		final int i = next.getAndIncrement();
+
+		if ( i < order.length )
+			return order[ i ];
+		else
+			return -1;
+	}
+
+	/**
+	 * @return - the number of blocks that will be processed
+	 */
+	public int getNumBlocks() { return order.length; }
+
+	/**
+	 * @return - the fraction of blocks that have been handed out [0...1]
+	 */
+	public double getProgress()
+	{
+		if ( order.length == 0 )
+			return 1;
+		else
+			return Math.min( 1.0, (double)next.get() / (double)order.length );
+	}
+}
@@ -0,0 +1,211 @@
+package mpicbg.stitching.fusion;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import mpicbg.imglib.type.numeric.RealType;
+
+/**
+ * Stores the fusion in cells of a fixed size (byte[], short[] or float[] depending on the type). A cell is only
+ * allocated once the fusion writes into it, so the empty parts of the bounding box (e.g. of an L-shaped or
+ * sparse scan) cost no memory, and as every cell is a separate array the output can be larger than what fits
+ * into one ImageJ plane. Pixels of cells that are not allocated are 0.
+ */
+public class CellFusionOutput implements FusionOutput
+{
+	final int numDimensions;
+	final int[] size, cellSize, numCellsPerDim;
+	final int numCells, cellPixels;
+	final RealType< ? > type;
+
+	// null if not allocated yet
+	final AtomicReferenceArray< Object > cells;
+
+	/**
+	 * @param size - the size of the output
+	 * @param cellSize - the size of one cell
+	 * @param type - the type of the pixels, {@link mpicbg.imglib.type.numeric.integer.UnsignedByteType}, {@link mpicbg.imglib.type.numeric.integer.UnsignedShortType} or float
+	 */
+	public CellFusionOutput( final int[] size, final int[] cellSize, final RealType< ? > type )
+	{
+		this.numDimensions = size.length;
+		this.size = size.clone();
+		this.cellSize = cellSize.clone();
+		this.numCellsPerDim = new int[ numDimensions ];
+		this.type = type;
+
+		long n = 1;
+		int p = 1;
+		for ( int d = 0; d < numDimensions; ++d )
+		{
+			numCellsPerDim[ d ] = Math.max( 1, ( size[ d ] + cellSize[ d ] - 1 ) / cellSize[ d ] );
+			n *= numCellsPerDim[ d ];
+			p *= cellSize[ d ];
+		}
+
+		if ( n > Integer.MAX_VALUE )
+			throw new IllegalArgumentException( "Too many cells, please use a larger cell size." );
+
+		this.numCells = (int)n;
+		this.cellPixels = p;
+		this.cells = new AtomicReferenceArray< Object >( numCells );
+	}
+
+	@Override
+	public int[] getDimensions() { return size.clone(); }
+
+	/**
+	 * @return - the size of one cell
+	 */
+	public int[] getCellSize() { return cellSize.clone(); }
+
+	/**
+	 * @return - the number of cells in each dimension
+	 */
+	public int[] getNumCellsPerDim() { return numCellsPerDim.clone(); }
+
+	/**
+	 * @return - the number of cells (allocated or not)
+	 */
+	public int getNumCells() { return numCells; }
+
+	/**
+	 * @return - the number of cells that are allocated
+	 */
+	public int getNumAllocatedCells()
+	{
+		int n = 0;
+
+		for ( int i = 0; i < numCells; ++i )
+			if ( cells.get( i ) != null )
+				++n;
+
+		return n;
+	}
+
+	/**
+	 * @param cell - the index of the cell (x fastest)
+	 * @return - the byte[], short[] or float[] of the cell with x fastest (size of a complete cell also at the border), null if it is empty
+	 */
+	public Object getCell( final int cell ) { return cells.get( cell ); }
+
+	@Override
+	public void writeRow( final int[] pos, final float[] row, final int offset, final int length )
+	{
+		int x = 0;
+
+		// the row can span several cells
+		while ( x < length )
+		{
+			final int px = pos[ 0 ] + x;
+			final int cellX = px / cellSize[ 0 ];
+			final int n = Math.min( length - x, ( cellX + 1 ) * cellSize[ 0 ] - px );
+
+			final int cell = getCellIndex( cellX, pos );
+			Object data = cells.get( cell );
+
+			if ( data == null )
+			{
+				// another thread might allocate it at the same time
+				cells.compareAndSet( cell, null, RowAccess.createArray( type, cellPixels ) );
+				data = cells.get( cell );
+			}
+
+			RowAccess.write( row, offset + x, data, getIndexInCell( px, pos ), n );
+			x += n;
+		}
+	}
+
+	/**
+	 * Reads a row of pixels, 0 where no cell is allocated
+	 *
+	 * @param pos - the position of the first pixel of the row
+	 * @param row - the target array
+	 * @param offset - the first index in row
+	 * @param length - the number of pixels
+	 */
+	public void readRow( final int[] pos, final float[] row, final int offset, final int length )
+	{
+		int x = 0;
+
+		while ( x < length )
+		{
+			final int px = pos[ 0 ] + x;
+			final int cellX = px / cellSize[ 0 ];
+			final int n = Math.min( length - x, ( cellX + 1 ) * cellSize[ 0 ] - px );
+
+			final Object data = cells.get( getCellIndex( cellX, pos ) );
+
+			if ( data == null )
+			{
+				for ( int i = 0; i < n; ++i )
+					row[ offset + x + i ] = 0;
+			}
+			else
+			{
+				RowAccess.read( data, getIndexInCell( px, pos ), row, offset + x, n );
+			}
+
+			x += n;
+		}
+	}
+
+	/**
+	 * Copies a part of the output into an ImagePlus (the type is the same as the type of the cells)
+	 *
+	 * @param min - the first pixel (inclusive)
+	 * @param max - the last pixel (inclusive)
+	 * @return - a new ImagePlus, has to fit into ImageJ's limits
+	 */
+	public ImagePlus getImagePlus( final int[] min, final int[] max )
+	{
+		final int width = max[ 0 ] - min[ 0 ] + 1;
+		final int height = max[ 1 ] - min[ 1 ] + 1;
+		final int depth = numDimensions == 3 ? max[ 2 ] - min[ 2 ] + 1 : 1;
+
+		final ImageStack stack = new ImageStack( width, height );
+		final int[] pos = min.clone();
+		final float[] row = new float[ width ];
+
+		for ( int z = 0; z < depth; ++z )
+		{
+			final Object plane = RowAccess.createArray( type, width * height );
+
+			if ( numDimensions == 3 )
+				pos[ 2 ] = min[ 2 ] + z;
+
+			for ( int y = 0; y < height; ++y )
+			{
+				pos[ 1 ] = min[ 1 ] + y;
+				readRow( pos, row, 0, width );
+				RowAccess.write( row, 0, plane, y * width, width );
+			}
+
+			stack.addSlice( "", plane );
+		}
+
+		return new ImagePlus( "", stack );
+	}
+
+	protected int getCellIndex( final int cellX, final int[] pos )
+	{
+		int c = 0;
+
+		for ( int d = numDimensions - 1; d > 0; --d )
+			c = c * numCellsPerDim[ d ] + pos[ d ] / cellSize[ d ];
+
+		return c * numCellsPerDim[ 0 ] + cellX;
+	}
+
+	protected int getIndexInCell( final int x, final int[] pos )
+	{
+		int i = 0;
+
+		for ( int d = numDimensions - 1; d > 0; --d )
+			i = i * cellSize[ d ] + pos[ d ] % cellSize[ d ];
+
+		return i * cellSize[ 0 ] + x % cellSize[ 0 ];
+	}
+}
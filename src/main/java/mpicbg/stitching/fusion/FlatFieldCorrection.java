@@ -0,0 +1,170 @@
+package mpicbg.stitching.fusion;
+
+import ij.IJ;
+import ij.ImagePlus;
+
+/**
+ * Flat-field and dark-frame correction of one channel for tiles of one size. It is applied to the raw pixels of the
+ * tiles while they are read for the fusion, ( value - dark ) / flat, so no corrected copies of the tiles are necessary.
+ * Both images have the size of one plane of the tiles and are used for all planes. The flat-field is normalized to a
+ * mean of 1 so that the intensities stay roughly in the range of the input type. For 8-bit and 16-bit tiles the results
+ * are clamped to the range of the type, as they cannot be stored in the fused image otherwise: negative values become 0
+ * (note that ignoreZeroValues then ignores them) and values above the maximum, e.g. near saturation in the corners where
+ * the flat-field is below its mean, become the maximum.
+ */
+public class FlatFieldCorrection
+{
+	final int width, height;
+
+	// the largest value of the type of the tiles (255 or 65535), results are clamped to [ 0, maxValue ], 0 means no clamping
+	final int maxValue;
+
+	// null if there is no dark-frame
+	final float[] dark;
+
+	// mean( flat ) / flat, null if there is no flat-field
+	final float[] gain;
+
+	/**
+	 * @param flat - the flat-field, can be null
+	 * @param dark - the dark-frame, can be null
+	 * @param width - the width of the tiles
+	 * @param height - the height of the tiles
+	 * @param maxValue - the largest value of the type for 8-bit and 16-bit tiles (255 or 65535), 0 for float tiles (no clamping)
+	 */
+	public FlatFieldCorrection( final float[] flat, final float[] dark, final int width, final int height, final int maxValue )
+	{
+		this.width = width;
+		this.height = height;
+		this.maxValue = maxValue;
+		this.dark = dark;
+
+		if ( flat == null )
+		{
+			this.gain = null;
+		}
+		else
+		{
+			double mean = 0;
+
+			for ( final float f : flat )
+				mean += f;
+
+			mean /= flat.length;
+
+			// dead pixels of the flat-field become 0
+			this.gain = new float[ flat.length ];
+
+			for ( int i = 0; i < flat.length; ++i )
+				gain[ i ] = flat[ i ] > 0 ? (float)( mean / flat[ i ] ) : 0;
+		}
+	}
+
+	/**
+	 * @param flatField - the flat-fields, one plane per channel or one plane for all channels, can be null
+	 * @param darkFrame - the dark-frames, one plane per channel or one plane for all channels, can be null
+	 * @param c - the channel (1-based)
+	 * @param width - the width of the tiles
+	 * @param height - the height of the tiles
+	 * @param maxValue - the largest value of the type for 8-bit and 16-bit tiles (255 or 65535), 0 for float tiles (no clamping)
+	 * @return - the correction of this channel, or null if there is none or the images do not match the tiles
+	 */
+	public static FlatFieldCorrection create( final ImagePlus flatField, final ImagePlus darkFrame, final int c, final int width, final int height, final int maxValue )
+	{
+		if ( flatField == null && darkFrame == null )
+			return null;
+
+		for ( final ImagePlus imp : new ImagePlus[] { flatField, darkFrame } )
+			if ( imp != null && ( imp.getWidth() != width || imp.getHeight() != height ) )
+			{
+				IJ.log( "The size of " + imp.getTitle() + " (" + imp.getWidth() + "x" + imp.getHeight() + ") does not match the tiles of size " +
+						width + "x" + height + ", they are not flat-field corrected." );
+				return null;
+			}
+
+		return new FlatFieldCorrection( getPlane( flatField, c ), getPlane( darkFrame, c ), width, height, maxValue );
+	}
+
+	/**
+	 * @return - the plane of channel c (or the first one if there are less channels) as float, null if imp is null
+	 */
+	protected static float[] getPlane( final ImagePlus imp, final int c )
+	{
+		if ( imp == null )
+			return null;
+
+		final int channel = c <= imp.getNChannels() ? c : 1;
+		final float[] plane = new float[ imp.getWidth() * imp.getHeight() ];
+
+		RowAccess.read( imp.getStack().getPixels( imp.getStackIndex( channel, 1, 1 ) ), 0, plane, 0, plane.length );
+
+		return plane;
+	}
+
+	/**
+	 * @param value - the raw value
+	 * @param index - the index of the pixel in its plane, y * width + x
+	 * @return - the corrected value
+	 */
+	public float correct( final float value, final int index )
+	{
+		float v = value;
+
+		if ( dark != null )
+			v -= dark[ index ];
+
+		if ( gain != null )
+			v *= gain[ index ];
+
+		return clamp( v );
+	}
+
+	/**
+	 * @param value - the raw value
+	 * @param position - the local position in the tile, the nearest pixel is used
+	 * @return - the corrected value
+	 */
+	public float correct( final float value, final float[] position )
+	{
+		final int x = Math.max( 0, Math.min( width - 1, RowAccess.round( position[ 0 ] ) ) );
+		final int y = Math.max( 0, Math.min( height - 1, RowAccess.round( position[ 1 ] ) ) );
+
+		return correct( value, y * width + x );
+	}
+
+	/**
+	 * Corrects a row of raw values
+	 *
+	 * @param row - the values
+	 * @param offset - the first index in row
+	 * @param index - the index of the first pixel in its plane, y * width + x
+	 * @param length - the number of pixels
+	 */
+	public void correctRow( final float[] row, final int offset, final int index, final int length )
+	{
+		for ( int i = 0; i < length; ++i )
+		{
+			float v = row[ offset + i ];
+
+			if ( dark != null )
+				v -= dark[ index + i ];
+
+			if ( gain != null )
+				v *= gain[ index + i ];
+
+			row[ offset + i ] = clamp( v );
+		}
+	}
+
+	/**
+	 * @param value - the corrected value
+	 * @return - the value clamped to [ 0, maxValue ] for 8-bit and 16-bit tiles, unchanged for float tiles
+	 */
+	protected float clamp( final float value )
+	{
+		if ( maxValue == 0 )
+			return value;
+		else
+			return Math.max( 0, Math.min( maxValue, value ) );
+	}
+}
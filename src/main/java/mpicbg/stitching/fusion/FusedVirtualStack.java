@@ -0,0 +1,374 @@
+package mpicbg.stitching.fusion;
+
+import ij.ImagePlus;
+import ij.VirtualStack;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingDeque;
+
+import mpicbg.imglib.type.numeric.RealType;
+import mpicbg.models.InvertibleBoundable;
+
+/**
+ * A virtual stack of the fusion, a plane is only fused when ImageJ asks for it. The most recently used planes are
+ * kept in a cache, and the neighboring z-planes are fused in the background so that scrolling through the stack
+ * does not have to wait. The background thread only runs while there are planes to prefetch, so nothing keeps the
+ * stack alive once the ImagePlus is gone. Only the input of one channel and timepoint is prepared at a time.
+ */
+public class FusedVirtualStack< T extends RealType< T > > extends VirtualStack
+{
+	/**
+	 * The maximal size of the cached planes in MB
+	 */
+	public static int cacheSize = 256;
+
+	/**
+	 * How many planes above and below the current one are fused in the background
+	 */
+	public static int prefetchPlanes = 2;
+
+	final T targetType;
+	final ArrayList< ImagePlus > images;
+	final ArrayList< InvertibleBoundable > models;
+	final boolean subpixelResolution, ignoreZeroValues;
+	final int fusionType;
+
+	final float[] offset;
+	final int[] size;
+	final int width, height, numChannels, numSlices, numTimePoints;
+
+	// the fused planes, least recently used first
+	final LinkedHashMap< Integer, Object > cache;
+
+	// the planes that are being fused at the moment
+	final HashMap< Integer, FutureTask< Object > > pending = new HashMap< Integer, FutureTask< Object > >();
+
+	// the planes the background thread should fuse next
+	final LinkedBlockingDeque< Integer > prefetch = new LinkedBlockingDeque< Integer >();
+
+	// only running while there are planes to prefetch (guarded by prefetch)
+	Thread prefetcher = null;
+	boolean closed = false;
+
+	// the input of the channel and timepoint that was used last
+	Input current = null;
+
+	/**
+	 * @param targetType - the type of the output
+	 * @param images - the input images
+	 * @param models - the transformations
+	 * @param subpixelResolution - use linear interpolation
+	 * @param fusionType - 0 == blending, 1 == average, 2 == median, 3 == max, 4 == min
+	 * @param ignoreZeroValues - do not use pixels that are 0
+	 * @param offset - the offset of the output image
+	 * @param size - the size of the output image, see {@link Fusion#getOutputSize(float[], java.util.List, ArrayList, int, boolean)}
+	 */
+	public FusedVirtualStack( final T targetType, final ArrayList< ImagePlus > images, final ArrayList< InvertibleBoundable > models,
+			final boolean subpixelResolution, final int fusionType, final boolean ignoreZeroValues, final float[] offset, final int[] size )
+	{
+		super( size[ 0 ], size[ 1 ], null, null );
+
+		this.targetType = targetType;
+		this.images = images;
+		this.models = models;
+		this.subpixelResolution = subpixelResolution;
+		this.fusionType = fusionType;
+		this.ignoreZeroValues = ignoreZeroValues;
+
+		this.offset = offset.clone();
+		this.size = size.clone();
+
+		this.width = size[ 0 ];
+		this.height = size[ 1 ];
+		this.numChannels = images.get( 0 ).getNChannels();
+		this.numSlices = size.length == 3 ? size[ 2 ] : 1;
+		this.numTimePoints = images.get( 0 ).getNFrames();
+
+		final long maxPlanes = Math.max( 1, ( (long)cacheSize << 20 ) / ( (long)width * height * RowAccess.getBytesPerPixel( targetType ) ) );
+
+		this.cache = new LinkedHashMap< Integer, Object >( 16, 0.75f, true )
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry( final Map.Entry< Integer, Object > eldest )
+			{
+				return size() > maxPlanes;
+			}
+		};
+	}
+
+	/**
+	 * @return - a hyperstack showing this virtual stack
+	 */
+	public ImagePlus getImagePlus()
+	{
+		final ImagePlus imp = new ImagePlus( "Fused", this );
+		imp.setDimensions( numChannels, numSlices, numTimePoints );
+
+		return imp;
+	}
+
+	/**
+	 * Stops fusing planes in the background and frees the cache, the stack can still be used but will not prefetch anymore
+	 */
+	public void close()
+	{
+		synchronized ( prefetch )
+		{
+			closed = true;
+			prefetch.clear();
+
+			if ( prefetcher != null )
+				prefetcher.interrupt();
+		}
+
+		synchronized ( cache )
+		{
+			cache.clear();
+		}
+
+		synchronized ( this )
+		{
+			current = null;
+		}
+	}
+
+	/**
+	 * Starts the background thread if it is not running, it exits once there is nothing left to prefetch
+	 */
+	protected void startPrefetcher()
+	{
+		synchronized ( prefetch )
+		{
+			if ( closed || prefetcher != null || prefetch.isEmpty() )
+				return;
+
+			prefetcher = new Thread( new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					for ( Integer n = nextPrefetch(); n != null && !Thread.currentThread().isInterrupted(); n = nextPrefetch() )
+						getPlane( n );
+				}
+			}, "fusion prefetch" );
+
+			prefetcher.setDaemon( true );
+			prefetcher.start();
+		}
+	}
+
+	/**
+	 * @return - the next plane to prefetch, or null if there is none, then the background thread has to exit
+	 */
+	protected Integer nextPrefetch()
+	{
+		synchronized ( prefetch )
+		{
+			final Integer n = closed ? null : prefetch.poll();
+
+			if ( n == null )
+				prefetcher = null;
+
+			return n;
+		}
+	}
+
+	@Override
+	public int getSize() { return numChannels * numSlices * numTimePoints; }
+
+	@Override
+	public String getSliceLabel( final int n ) { return null; }
+
+	@Override
+	public Object getPixels( final int n ) { return getPlane( n ); }
+
+	@Override
+	public void setPixels( final Object pixels, final int n ) {}
+
+	@Override
+	public ImageProcessor getProcessor( final int n )
+	{
+		final Object pixels = getPlane( n );
+
+		// fuse the neighbors of this plane next
+		final int z = ( ( n - 1 ) / numChannels ) % numSlices;
+
+		prefetch.clear();
+
+		for ( int i = 1; i <= prefetchPlanes; ++i )
+		{
+			if ( z + i < numSlices )
+				prefetch.add( n + i * numChannels );
+
+			if ( z - i >= 0 )
+				prefetch.add( n - i * numChannels );
+		}
+
+		startPrefetcher();
+
+		if ( pixels instanceof byte[] )
+			return new ByteProcessor( width, height, (byte[])pixels, null );
+		else if ( pixels instanceof short[] )
+			return new ShortProcessor( width, height, (short[])pixels, null );
+		else
+			return new FloatProcessor( width, height, (float[])pixels, null );
+	}
+
+	/**
+	 * @param n - the plane (1-based, ImageJ order: channels, slices, timepoints)
+	 * @return - the pixels of the fused plane, from the cache if possible
+	 */
+	public Object getPlane( final int n )
+	{
+		final FutureTask< Object > task;
+		final boolean fuse;
+
+		synchronized ( cache )
+		{
+			final Object pixels = cache.get( n );
+
+			if ( pixels != null )
+				return pixels;
+
+			// maybe it is already fused by another thread
+			if ( pending.containsKey( n ) )
+			{
+				task = pending.get( n );
+				fuse = false;
+			}
+			else
+			{
+				task = new FutureTask< Object >( new Callable< Object >()
+				{
+					@Override
+					public Object call() { return fusePlane( n ); }
+				});
+
+				pending.put( n, task );
+				fuse = true;
+			}
+		}
+
+		if ( fuse )
+			task.run();
+
+		try
+		{
+			final Object pixels = task.get();
+
+			if ( fuse )
+			{
+				synchronized ( cache )
+				{
+					cache.put( n, pixels );
+					pending.remove( n );
+				}
+			}
+
+			return pixels;
+		}
+		catch ( ExecutionException e )
+		{
+			synchronized ( cache )
+			{
+				pending.remove( n );
+			}
+
+			throw new RuntimeException( "Cannot fuse plane " + n + ": " + e.getCause() );
+		}
+		catch ( InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			return RowAccess.createArray( targetType, width * height );
+		}
+	}
+
+	protected Object fusePlane( final int n )
+	{
+		final int c = ( n - 1 ) % numChannels + 1;
+		final int z = ( ( n - 1 ) / numChannels ) % numSlices;
+		final int t = ( n - 1 ) / ( numChannels * numSlices ) + 1;
+
+		final Input input = getInput( c, t );
+		final Object pixels = RowAccess.createArray( targetType, width * height );
+
+		// the blocks of the index are one plane thick
+		final int numBlocks = input.index.getNumBlocks();
+		final boolean[] selectedBlocks = new boolean[ numBlocks ];
+		final int[] min = new int[ size.length ];
+		final int[] max = new int[ size.length ];
+
+		for ( int b = 0; b < numBlocks; ++b )
+		{
+			input.index.getBlockBounds( b, min, max );
+			selectedBlocks[ b ] = size.length == 2 || min[ 2 ] == z;
+		}
+
+		final FusionOutput output = new FusionOutput()
+		{
+			@Override
+			public int[] getDimensions() { return size.clone(); }
+
+			@Override
+			public void writeRow( final int[] pos, final float[] row, final int offset, final int length )
+			{
+				RowAccess.write( row, offset, pixels, pos[ 1 ] * width + pos[ 0 ], length );
+			}
+		};
+
+		Fusion.fuseBlock( output, input.blockData, offset, models, input.fusion, null, input.index, selectedBlocks );
+
+		return pixels;
+	}
+
+	protected synchronized Input getInput( final int c, final int t )
+	{
+		if ( current == null || current.c != c || current.t != t )
+			current = new Input( c, t );
+
+		return current;
+	}
+
+	/**
+	 * The input of one channel and timepoint
+	 */
+	protected class Input
+	{
+		final int c, t;
+		final ArrayList< ? extends ImageInterpolation< ? extends RealType< ? > > > blockData;
+		final PixelFusion fusion;
+		final TileIndex index;
+
+		public Input( final int c, final int t )
+		{
+			this.c = c;
+			this.t = t;
+
+			if ( subpixelResolution )
+				blockData = Fusion.interpolateImages( images, c, t );
+			else
+				blockData = Fusion.wrapImages( images, c, t );
+
+			fusion = Fusion.createPixelFusion( fusionType, ignoreZeroValues, subpixelResolution ? 0 : Fusion.getMaxIntegerValue( targetType ), blockData );
+
+			final int[] blockSize = TileIndex.getDefaultBlockSize( size.length );
+
+			if ( size.length == 3 )
+				blockSize[ 2 ] = 1;
+
+			index = new TileIndex( size, offset, TileIndex.getImageSizes( blockData ), models, blockSize );
+		}
+	}
+}
@@ -7,12 +7,19 @@ import ij.ImageJ;
 import ij.ImagePlus;
 import ij.ImageStack;
 import ij.io.FileSaver;
+import ij.process.FloatProcessor;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Vector;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import mpicbg.imglib.container.array.ArrayContainerFactory;
 import mpicbg.imglib.container.imageplus.ImagePlusContainer;
@@ -23,11 +30,9 @@ import mpicbg.imglib.exception.ImgLibException;
 import mpicbg.imglib.image.Image;
 import mpicbg.imglib.image.ImageFactory;
 import mpicbg.imglib.image.display.imagej.ImageJFunctions;
-import mpicbg.imglib.interpolation.Interpolator;
 import mpicbg.imglib.interpolation.InterpolatorFactory;
 import mpicbg.imglib.interpolation.linear.LinearInterpolatorFactory;
 import mpicbg.imglib.interpolation.nearestneighbor.NearestNeighborInterpolatorFactory;
-import mpicbg.imglib.multithreading.Chunk;
 import mpicbg.imglib.multithreading.SimpleMultiThreading;
 import mpicbg.imglib.outofbounds.OutOfBoundsStrategyMirrorFactory;
 import mpicbg.imglib.outofbounds.OutOfBoundsStrategyValueFactory;
@@ -48,6 +53,48 @@ import stitching.utils.CompositeImageFixer;
 public class Fusion 
 {
 	public static long redrawDelay = 500;
+	
+	/**
+	 * Fuse blending, average, max and min tile by tile using {@link ScatterFusion} (only one tile is loaded
+	 * at a time, but it needs two float buffers of the size of the output image)
+	 */
+	public static boolean scatterFusion = false;
+	
+	/**
+	 * How many slices are kept in memory at most when writing the fusion to disk (fused slices wait there
+	 * to be written). It only limits the memory, all cores fuse the blocks of the slices in parallel.
+	 */
+	public static int slicesInFlight = 8;
+	
+	/**
+	 * How much memory (in MB) the channels and timepoints that are fused at the same time may use, 0 means half of the free memory
+	 */
+	public static long memoryBudget = 0;
+	
+	// the number of threads a single fusion uses, if it is not the number of processors
+	protected static final ThreadLocal< Integer > numThreads = new ThreadLocal< Integer >();
+	
+	/**
+	 * Compute the maximum and/or average intensity projection along z of every channel and timepoint of a 3d fusion while fusing.
+	 * They are attached to the result as the properties "MaxProjection" and "MeanProjection", or saved as MAX_ and AVG_
+	 * images next to the slices if the fusion is written to disk.
+	 */
+	public static boolean maxProjection = false;
+	public static boolean meanProjection = false;
+	
+	/**
+	 * Flat-field and dark-frame correction, ( value - dark ) / flat is applied to every pixel of the tiles while it is read, for
+	 * 8-bit and 16-bit tiles the results are clamped to the range of the type (see {@link FlatFieldCorrection}). One plane per channel or one for all channels
+	 * of the size of the tiles, null means none. Tiles of a different size are not corrected.
+	 */
+	public static ImagePlus flatField = null;
+	public static ImagePlus darkFrame = null;
+	
+	/**
+	 * Write the slices as tiled BigTIFF with downsampled levels (see {@link BigTiffWriter}) instead of plain TIFF,
+	 * the file names are the same for both
+	 */
+	public static boolean writeTiledTiff = false;
 
 	/**
 	 * 
@@ -59,18 +106,178 @@ public class Fusion
 	 */
 	public static < T extends RealType< T > > ImagePlus fuse( final T targetType, final ArrayList< ImagePlus > images, final ArrayList< InvertibleBoundable > models, 
 			final int dimensionality, final boolean subpixelResolution, final int fusionType, final String outputDirectory, final boolean noOverlap, final boolean ignoreZeroValues, final boolean displayImages )
+	{
+		return fuse( targetType, images, models, dimensionality, subpixelResolution, fusionType, outputDirectory, noOverlap, ignoreZeroValues, displayImages, null );
+	}
+	
+	/**
+	 * 
+	 * @param targetType
+	 * @param images
+	 * @param models
+	 * @param dimensionality
+	 * @param subpixelResolution - if there is no subpixel resolution, we do not need to convert to float as no interpolation is necessary, we can compute everything with RealType
+	 * @param downsampling - fuse at a reduced scale, the integer factor (at least 1) for each dimension (or null for full resolution). Every output pixel 
+	 * is the fusion of the tiles averaged over its area, which costs about 1/(factor^n) of the full fusion. Cannot be combined with noOverlap.
+	 * @return - the fused image, or null if it was written to disk or the downsampling is invalid
+	 */
+	public static < T extends RealType< T > > ImagePlus fuse( final T targetType, final ArrayList< ImagePlus > images, final ArrayList< InvertibleBoundable > models, 
+			final int dimensionality, final boolean subpixelResolution, final int fusionType, final String outputDirectory, final boolean noOverlap, final boolean ignoreZeroValues, final boolean displayImages,
+			final int[] downsampling )
 	{
 		// first we need to estimate the boundaries of the new image
 		final float[] offset = new float[ dimensionality ];
+		final int[] size = getOutputSize( offset, images, models, dimensionality, subpixelResolution );
+		
+		return fuse( targetType, images, models, dimensionality, subpixelResolution, fusionType, outputDirectory, noOverlap, ignoreZeroValues, displayImages, downsampling, offset, size );
+	}
+	
+	/**
+	 * @param downsampling - the factor for each dimension
+	 * @param dimensionality - 2 or 3
+	 * @param noOverlap - the tiles should be copied instead of fused
+	 * @return - true if the downsampling can be used, otherwise the reason is logged
+	 */
+	protected static boolean isValidDownsampling( final int[] downsampling, final int dimensionality, final boolean noOverlap )
+	{
+		if ( downsampling.length != dimensionality )
+		{
+			IJ.log( "The downsampling needs one factor for each of the " + dimensionality + " dimensions, not " + downsampling.length + "." );
+			return false;
+		}
+		
+		for ( final int factor : downsampling )
+			if ( factor < 1 )
+			{
+				IJ.log( "The downsampling factors have to be at least 1: " + Arrays.toString( downsampling ) );
+				return false;
+			}
+		
+		// the downsampled tiles are always fused, copying them is not implemented
+		if ( noOverlap )
+		{
+			IJ.log( "Fusing without overlap is not supported with downsampling." );
+			return false;
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Fuses a region of the mosaic, only the tiles that intersect it are loaded. The pixels are on the same grid as 
+	 * the full fusion (see {@link #estimateBounds(float[], int[], List, ArrayList, int)}), so the region lines up with 
+	 * it pixel for pixel: pixel i of the region is pixel i + (offset - full offset) of the full fusion.
+	 * 
+	 * @param targetType - the type of the output
+	 * @param images - the input images
+	 * @param models - the transformations
+	 * @param dimensionality - 2 or 3
+	 * @param subpixelResolution - use linear interpolation
+	 * @param fusionType - 0 == blending, 1 == average, 2 == median, 3 == max, 4 == min
+	 * @param ignoreZeroValues - do not use pixels that are 0
+	 * @param min - the lower corner of the region in mosaic coordinates
+	 * @param max - the upper corner of the region in mosaic coordinates (inclusive)
+	 * @param offset - the offset of the region in mosaic coordinates, will be computed
+	 * @param displayImages - show the output while fusing
+	 * @return - the fused region, or null if no tile intersects it
+	 */
+	public static < T extends RealType< T > > ImagePlus fuseRegion( final T targetType, final ArrayList< ImagePlus > images, final ArrayList< InvertibleBoundable > models, 
+			final int dimensionality, final boolean subpixelResolution, final int fusionType, final boolean ignoreZeroValues, final float[] min, final float[] max,
+			final float[] offset, final boolean displayImages )
+	{
+		// the grid of the full fusion
+		final float[] fullOffset = new float[ dimensionality ];
+		getOutputSize( fullOffset, images, models, dimensionality, subpixelResolution );
+		
+		// all pixels of the full fusion that are inside the region
 		final int[] size = new int[ dimensionality ];
-		final int numTimePoints = images.get( 0 ).getNFrames();
-		final int numChannels = images.get( 0 ).getNChannels();
 		
-		estimateBounds( offset, size, images, models, dimensionality );
+		for ( int d = 0; d < dimensionality; ++d )
+		{
+			final int first = (int)Math.ceil( min[ d ] - fullOffset[ d ] );
+			final int last = (int)Math.floor( max[ d ] - fullOffset[ d ] );
+			
+			if ( last < first )
+			{
+				IJ.log( "The region is empty." );
+				return null;
+			}
+			
+			offset[ d ] = fullOffset[ d ] + first;
+			size[ d ] = last - first + 1;
+		}
 		
-		if ( subpixelResolution )
-			for ( int d = 0; d < size.length; ++d )
-				++size[ d ];
+		// only the tiles that intersect the region
+		final int[][] imgSizes = getImageSizes( images, dimensionality );
+		final ArrayList< ImagePlus > regionImages = new ArrayList< ImagePlus >();
+		final ArrayList< InvertibleBoundable > regionModels = new ArrayList< InvertibleBoundable >();
+		
+		for ( int i = 0; i < images.size(); ++i )
+		{
+			final float[] tileMin = new float[ dimensionality ];
+			final float[] tileMax = new float[ dimensionality ];
+			
+			for ( int d = 0; d < dimensionality; ++d )
+				tileMax[ d ] = imgSizes[ i ][ d ];
+			
+			models.get( i ).estimateBounds( tileMin, tileMax );
+			
+			boolean intersects = true;
+			
+			// the tile might be rotated so that min is actually max
+			for ( int d = 0; d < dimensionality; ++d )
+				if ( Math.max( tileMin[ d ], tileMax[ d ] ) < offset[ d ] || Math.min( tileMin[ d ], tileMax[ d ] ) > offset[ d ] + size[ d ] - 1 )
+					intersects = false;
+			
+			if ( intersects )
+			{
+				regionImages.add( images.get( i ) );
+				regionModels.add( models.get( i ) );
+			}
+		}
+		
+		if ( regionImages.size() == 0 )
+		{
+			IJ.log( "No tile intersects the region." );
+			return null;
+		}
+		
+		return fuse( targetType, regionImages, regionModels, dimensionality, subpixelResolution, fusionType, null, false, ignoreZeroValues, displayImages, null, offset.clone(), size );
+	}
+	
+	/**
+	 * Fuses all channels and timepoints into an output of the given size and offset
+	 * 
+	 * @param offset - the offset of the output image (at full resolution), will be changed if downsampling is used
+	 * @param size - the size of the output image (at full resolution), will be changed if downsampling is used
+	 */
+	protected static < T extends RealType< T > > ImagePlus fuse( final T targetType, final ArrayList< ImagePlus > images, final ArrayList< InvertibleBoundable > models, 
+			final int dimensionality, final boolean subpixelResolution, final int fusionType, final String outputDirectory, final boolean noOverlap, final boolean ignoreZeroValues, final boolean displayImages,
+			final int[] downsampling, final float[] offset, final int[] size )
+	{
+		if ( downsampling != null && !isValidDownsampling( downsampling, dimensionality, noOverlap ) )
+			return null;
+		
+		// the downsampling is folded into the transformations, the output pixel i is at i*factor + offset at full resolution
+		final ArrayList< InvertibleBoundable > scaledModels;
+		
+		if ( downsampling != null )
+		{
+			scaledModels = ScaledModel.scale( models, downsampling );
+			
+			for ( int d = 0; d < dimensionality; ++d )
+			{
+				offset[ d ] /= downsampling[ d ];
+				size[ d ] = ( size[ d ] + downsampling[ d ] - 1 ) / downsampling[ d ];
+			}
+		}
+		else
+		{
+			scaledModels = null;
+		}
+		
+		final int numTimePoints = images.get( 0 ).getNFrames();
+		final int numChannels = images.get( 0 ).getNChannels();
 		
 		// for output
 		final ImageFactory<T> f = new ImageFactory<T>( targetType, new ImagePlusContainerFactory() );
@@ -84,154 +291,110 @@ public class Fusion
 		else
 			stack = null;
 
-		//"Overlay into composite image"
-		for ( int t = 1; t <= numTimePoints; ++t )
+		// all channels of a timepoint in one pass, so that every location is transformed only once (translations are cheap anyways)
+		final boolean allChannels = numChannels > 1 && outputDirectory == null && downsampling == null && !noOverlap && !scatterFusion && !TranslationFusion.isTranslation( models );
+		final int channelsPerVolume = allChannels ? numChannels : 1;
+		final int numVolumes = numTimePoints * numChannels / channelsPerVolume;
+		
+		// several volumes are fused at the same time if they fit into the memory budget, each one with a part of the threads
+		final int volumesInFlight;
+		
+		if ( outputDirectory == null )
+			volumesInFlight = getVolumesInFlight( estimateVolumeMemory( targetType, images, size, channelsPerVolume, subpixelResolution, downsampling ), numVolumes );
+		else
+			volumesInFlight = 1;
+		
+		final int threadsPerVolume = Math.max( 1, Runtime.getRuntime().availableProcessors() / volumesInFlight );
+		final boolean display = displayImages && volumesInFlight == 1;
+		
+		// the fused images in the order of the stack (t, c)
+		final AtomicReferenceArray< Image< T > > fusedImages = new AtomicReferenceArray< Image< T > >( numTimePoints * numChannels );
+		
+		// the projections along z, in the same order
+		final Projection[] projections;
+		
+		if ( dimensionality == 3 && ( maxProjection || meanProjection ) )
 		{
-			for ( int c = 1; c <= numChannels; ++c )
+			projections = new Projection[ numTimePoints * numChannels ];
+			
+			for ( int i = 0; i < projections.length; ++i )
+				projections[ i ] = new Projection( targetType, size[ 0 ], size[ 1 ], maxProjection, meanProjection );
+		}
+		else
+		{
+			projections = null;
+		}
+		final AtomicInteger nextVolume = new AtomicInteger( 0 );
+		
+		final Runnable worker = new Runnable()
+		{
+			@Override
+			public void run()
 			{
-				IJ.showStatus("Fusing time point: " + t + " of " + numTimePoints + ", " +
-					"channel: " + c + " of " + numChannels + "...");
-				// create the 2d/3d target image for the current channel and timepoint 
-				final Image< T > out;
-				
-				// we just create one slice if we write to disk
-				if ( outputDirectory == null )
-					out = f.createImage( size );
-				else
-					out = f.createImage( new int[] { size[ 0 ], size[ 1 ] } ); // just create a slice
-
-				// init the fusion
-				PixelFusion fusion = null;
-				
-				if ( fusionType == 1 )
-				{
-					if ( ignoreZeroValues )
-						fusion = new AveragePixelFusionIgnoreZero();
-					else
-						fusion = new AveragePixelFusion();
-				}
-				else if ( fusionType == 2 )
-				{
-					if ( ignoreZeroValues )
-						fusion = new MedianPixelFusionIgnoreZero();
-					else
-						fusion = new MedianPixelFusion();
-				}
-				else if ( fusionType == 3 )
-				{
-					if ( ignoreZeroValues )
-						fusion = new MaxPixelFusionIgnoreZero();
-					else
-						fusion = new MaxPixelFusion();
-				}
-				else if ( fusionType == 4 )
-				{
-					if ( ignoreZeroValues )
-						fusion = new MinPixelFusionIgnoreZero();
-					else
-						fusion = new MinPixelFusion();	
-				}
+				if ( volumesInFlight > 1 )
+					numThreads.set( threadsPerVolume );
 				
-				// extract the complete blockdata
-				if ( subpixelResolution )
+				for ( int v = nextVolume.getAndIncrement(); v < numVolumes; v = nextVolume.getAndIncrement() )
 				{
-					final ArrayList< ImageInterpolation< FloatType > > blockData = new ArrayList< ImageInterpolation< FloatType > >();
-
-					// for linear interpolation we want to mirror, otherwise we get black areas at the first and last pixel of each image
-					final InterpolatorFactory< FloatType > interpolatorFactory = new LinearInterpolatorFactory<FloatType>( new OutOfBoundsStrategyMirrorFactory<FloatType>() );
-					
-					for ( final ImagePlus imp : images )
-						blockData.add( new ImageInterpolation<FloatType>( ImageJFunctions.convertFloat( Hyperstack_rearranger.getImageChunk( imp, c, t ) ), interpolatorFactory ) );
-					
-					// init blending with the images
-					if ( fusionType == 0 )
-					{
-						if ( ignoreZeroValues )
-							fusion = new BlendingPixelFusionIgnoreZero( blockData );
-						else
-							fusion = new BlendingPixelFusion( blockData );
-					}
-					
-					if ( outputDirectory == null )
-					{
-						fuseBlock( out, blockData, offset, models, fusion, displayImages );
-					}
-					else
+					if ( allChannels )
 					{
-						final int numSlices;
+						final int t = v + 1;
 						
-						if ( dimensionality == 2 )
-							numSlices = 1;
-						else
-							numSlices = size[ 2 ];
+						IJ.showStatus("Fusing time point: " + t + " of " + numTimePoints + ", all " + numChannels + " channels...");
+						final ArrayList< Image< T > > channels = fuseChannels( targetType, f, size, images, t, offset, models, subpixelResolution, fusionType, ignoreZeroValues, display );
 						
-						writeBlock( out, numSlices, t, numTimePoints, c, numChannels, blockData, offset, models, fusion, outputDirectory );
-						out.close();
-					}
-				}
-				else
-				{
-					// can be a mixture of different RealTypes
-					final ArrayList< ImageInterpolation< ? extends RealType< ? > > > blockData = new ArrayList< ImageInterpolation< ? extends RealType< ? > > >();
-
-					final InterpolatorFactory< FloatType > interpolatorFactoryFloat = new NearestNeighborInterpolatorFactory< FloatType >( new OutOfBoundsStrategyValueFactory<FloatType>() );
-					final InterpolatorFactory< UnsignedShortType > interpolatorFactoryShort = new NearestNeighborInterpolatorFactory< UnsignedShortType >( new OutOfBoundsStrategyValueFactory<UnsignedShortType>() );
-					final InterpolatorFactory< UnsignedByteType > interpolatorFactoryByte = new NearestNeighborInterpolatorFactory< UnsignedByteType >( new OutOfBoundsStrategyValueFactory<UnsignedByteType>() );
-
-					for ( final ImagePlus imp : images )
-					{
-						if ( imp.getType() == ImagePlus.GRAY32 )
-							blockData.add( new ImageInterpolation<FloatType>( ImageJFunctions.wrapFloat( Hyperstack_rearranger.getImageChunk( imp, c, t ) ), interpolatorFactoryFloat ) );
-						else if ( imp.getType() == ImagePlus.GRAY16 )
-							blockData.add( new ImageInterpolation<UnsignedShortType>( ImageJFunctions.wrapShort( Hyperstack_rearranger.getImageChunk( imp, c, t ) ), interpolatorFactoryShort ) );
-						else
-							blockData.add( new ImageInterpolation<UnsignedByteType>( ImageJFunctions.wrapByte( Hyperstack_rearranger.getImageChunk( imp, c, t ) ), interpolatorFactoryByte ) );
-					}
-					
-					// init blending with the images
-					if ( fusionType == 0 )
-					{
-						if ( ignoreZeroValues )
-							fusion = new BlendingPixelFusionIgnoreZero( blockData );
-						else
-							fusion = new BlendingPixelFusion( blockData );					
-					}
-					
-					if ( outputDirectory == null )
-					{
-						if ( noOverlap )
-							fuseBlockNoOverlap( out, blockData, offset, models, displayImages );
-						else
-							fuseBlock( out, blockData, offset, models, fusion, displayImages );
+						for ( int c = 1; c <= numChannels; ++c )
+						{
+							fusedImages.set( ( t - 1 ) * numChannels + c - 1, channels.get( c - 1 ) );
+							
+							if ( projections != null )
+								projections[ ( t - 1 ) * numChannels + c - 1 ].addImage( channels.get( c - 1 ) );
+						}
 					}
 					else
 					{
-						final int numSlices;
-						
-						if ( dimensionality == 2 )
-							numSlices = 1;
-						else
-							numSlices = size[ 2 ];
+						final int t = v / numChannels + 1;
+						final int c = v % numChannels + 1;
 						
-						writeBlock( out, numSlices, t, numTimePoints, c, numChannels, blockData, offset, models, fusion, outputDirectory );
-						out.close();
+						fusedImages.set( v, fuseVolume( targetType, f, images, models, scaledModels, dimensionality, subpixelResolution, fusionType, outputDirectory, 
+								noOverlap, ignoreZeroValues, display, downsampling, offset, size, c, t, numChannels, numTimePoints, projections == null ? null : projections[ v ] ) );
 					}
 				}
+			}
+		};
+		
+		if ( volumesInFlight == 1 )
+		{
+			worker.run();
+		}
+		else
+		{
+			final Thread[] threads = new Thread[ volumesInFlight ];
+			
+			for ( int ithread = 0; ithread < threads.length; ++ithread )
+				threads[ ithread ] = new Thread( worker );
+			
+			SimpleMultiThreading.startAndJoin( threads );
+		}
+		
+		//"Overlay into composite image"
+		if ( stack != null )
+		{
+			for ( int i = 0; i < numTimePoints * numChannels; ++i )
+			{
+				final Image< T > out = fusedImages.get( i );
 				
 				// add to stack
 				try 
 				{
-					if ( stack != null )
-					{
-						final ImagePlus outImp = ((ImagePlusContainer<?,?>)out.getContainer()).getImagePlus();
-						for ( int z = 1; z <= out.getDimension( 2 ); ++z )
-							stack.addSlice( "", outImp.getStack().getProcessor( z ) );
-					}
+					final ImagePlus outImp = ((ImagePlusContainer<?,?>)out.getContainer()).getImagePlus();
+					for ( int z = 1; z <= out.getDimension( 2 ); ++z )
+						stack.addSlice( "", outImp.getStack().getProcessor( z ) );
 				} 
 				catch (ImgLibException e) 
 				{
 					IJ.log( "Output image has no ImageJ type: " + e );
-				}				
+				}
 			}
 		}
 
@@ -242,7 +405,12 @@ public class Fusion
 
 		// has been written to disk ...
 		if ( stack == null )
+		{
+			if ( projections != null )
+				saveProjections( projections, numChannels, numTimePoints, outputDirectory );
+			
 			return null;
+		}
 		
 		//convertXYZCT ...
 		ImagePlus result = new ImagePlus( "", stack );
@@ -252,7 +420,18 @@ public class Fusion
 		{
 			result.setDimensions( size[ 2 ], numChannels, numTimePoints );
 			result = OverlayFusion.switchZCinXYCZT( result );
-			return CompositeImageFixer.makeComposite( result, CompositeImage.COMPOSITE );
+			result = CompositeImageFixer.makeComposite( result, CompositeImage.COMPOSITE );
+			
+			if ( projections != null )
+			{
+				if ( maxProjection )
+					result.setProperty( "MaxProjection", getProjection( projections, true, numChannels, numTimePoints ) );
+				
+				if ( meanProjection )
+					result.setProperty( "MeanProjection", getProjection( projections, false, numChannels, numTimePoints ) );
+			}
+			
+			return result;
 		}
 		//IJ.log( "ch: " + imp.getNChannels() );
 		//IJ.log( "slices: " + imp.getNSlices() );
@@ -265,126 +444,1174 @@ public class Fusion
 	}
 	
 	/**
-	 * Fuse one slice/volume (one channel)
+	 * @return - the threads for one fusion, several fusions that run at the same time share the processors
+	 */
+	protected static Thread[] newThreads()
+	{
+		final Integer n = numThreads.get();
+		
+		if ( n == null )
+			return SimpleMultiThreading.newThreads();
+		else
+			return SimpleMultiThreading.newThreads( n );
+	}
+	
+	/**
+	 * @param projections - the projections of all channels and timepoints (t, c)
+	 * @param max - the maximum or the average projection
+	 * @param numChannels - the number of channels
+	 * @param numTimePoints - the number of timepoints
+	 * @return - a hyperstack with all channels and timepoints of the projection
+	 */
+	public static ImagePlus getProjection( final Projection[] projections, final boolean max, final int numChannels, final int numTimePoints )
+	{
+		final ImageStack stack = new ImageStack( projections[ 0 ].width, projections[ 0 ].height );
+		
+		for ( final Projection projection : projections )
+			stack.addSlice( "", max ? projection.getMaxProjection() : projection.getMeanProjection() );
+		
+		final ImagePlus imp = new ImagePlus( max ? "MAX_Fused" : "AVG_Fused", stack );
+		imp.setDimensions( numChannels, 1, numTimePoints );
+		
+		if ( numChannels > 1 )
+			return CompositeImageFixer.makeComposite( imp, CompositeImage.COMPOSITE );
+		
+		return imp;
+	}
+	
+	/**
+	 * Saves the projections as MAX_img_t?_c? and AVG_img_t?_c? into the output directory
 	 * 
-	 * @param output - same the type of the ImagePlus input
-	 * @param input - FloatType, because of Interpolation that needs to be done
-	 * @param transform - the transformation
+	 * @param projections - the projections of all channels and timepoints (t, c)
+	 * @param numChannels - the number of channels
+	 * @param numTimePoints - the number of timepoints
+	 * @param outputDirectory - the directory of the fused slices
 	 */
-	protected static <T extends RealType<T>> void fuseBlock( final Image<T> output, final ArrayList< ? extends ImageInterpolation< ? extends RealType< ? > > > input, final float[] offset, 
-			final ArrayList< InvertibleBoundable > transform, final PixelFusion fusion, final boolean displayFusion )
+	protected static void saveProjections( final Projection[] projections, final int numChannels, final int numTimePoints, final String outputDirectory )
 	{
-		final int numDimensions = output.getNumDimensions();
-		final int numImages = input.size();
-		long imageSize = output.getDimension( 0 );
+		for ( int i = 0; i < projections.length; ++i )
+		{
+			final String name = "img_t" + lz( i / numChannels + 1, numTimePoints ) + "_c" + lz( i % numChannels + 1, numChannels );
+			
+			if ( maxProjection )
+				new FileSaver( new ImagePlus( "MAX_" + name, projections[ i ].getMaxProjection() ) ).saveAsTiff( new File( outputDirectory, "MAX_" + name + ".tif" ).getAbsolutePath() );
+			
+			if ( meanProjection )
+				new FileSaver( new ImagePlus( "AVG_" + name, projections[ i ].getMeanProjection() ) ).saveAsTiff( new File( outputDirectory, "AVG_" + name + ".tif" ).getAbsolutePath() );
+		}
+	}
+	
+	/**
+	 * @param bytesPerVolume - the memory one fusion needs
+	 * @param numVolumes - how many fusions there are
+	 * @return - how many fusions can run at the same time within the {@link #memoryBudget}
+	 */
+	protected static int getVolumesInFlight( final long bytesPerVolume, final int numVolumes )
+	{
+		final Runtime runtime = Runtime.getRuntime();
+		final long budget;
 		
-		for ( int d = 1; d < output.getNumDimensions(); ++d )
-			imageSize *= output.getDimension( d );
+		if ( memoryBudget > 0 )
+			budget = memoryBudget << 20;
+		else
+			budget = ( runtime.maxMemory() - runtime.totalMemory() + runtime.freeMemory() ) / 2;
 		
-		IJ.showProgress( 0 );
-
-		final int[][] max = new int[ numImages ][ numDimensions ];
-		for ( int i = 0; i < numImages; ++i )
-			for ( int d = 0; d < numDimensions; ++d )
-				max[ i ][ d ] = input.get( i ).getImage().getDimension( d ) - 1; 
+		final long n = Math.min( Math.min( numVolumes, runtime.availableProcessors() ), budget / Math.max( 1, bytesPerVolume ) );
 		
-		// run multithreaded
-		final AtomicInteger ai = new AtomicInteger(0);					
-        final Thread[] threads = SimpleMultiThreading.newThreads();
-
-        final Vector<Chunk> threadChunks = SimpleMultiThreading.divideIntoChunks( imageSize, threads.length );
-        
-        for (int ithread = 0; ithread < threads.length; ++ithread)
-            threads[ithread] = new Thread(new Runnable()
-            {
-                @Override
-                public void run()
-                {
-                	// Thread ID
-                	final int myNumber = ai.getAndIncrement();
-        
-                	// only the first thread does preview and update the status bar
-                	// this requires no synchronized stuff
-            		long lastDraw = 0;
-            		ImagePlus fusionImp = null;
-
-                	if ( displayFusion && myNumber == 0 )
-                	{
-                		try
-            			{
-            				fusionImp = ((ImagePlusContainer<?, ?>) output.getContainer()).getImagePlus();
-            				fusionImp.setTitle( "fusing..." );
-            				fusionImp.show();
-            			}
-            			catch ( ImgLibException e )
-            			{
-            				IJ.log( "Output image has no ImageJ type: " + e );
-            			}                		
-                	}
-
-                	// get chunk of pixels to process
-                	final Chunk myChunk = threadChunks.get( myNumber );
-                	final long startPos = myChunk.getStartPosition();
-                	final long loopSize = myChunk.getLoopSize();
-                	
-            		final LocalizableCursor<T> out = output.createLocalizableCursor();
-            		final ArrayList<Interpolator<? extends RealType<?>>> in = new ArrayList<Interpolator<? extends RealType<?>>>();
-            		
-            		for ( int i = 0; i < numImages; ++i )
-            			in.add( input.get( i ).createInterpolator() );
-            		
-            		final float[][] tmp = new float[ numImages ][ output.getNumDimensions() ];
-            		final PixelFusion myFusion = fusion.copy();
-            		
-            		try 
+		return (int)Math.max( 1, n );
+	}
+	
+	/**
+	 * Estimates the memory of one fusion, the output and (with downsampling) the float copies of the input. With subpixel
+	 * resolution the input is interpolated directly, see {@link LinearImageInterpolation}
+	 * 
+	 * @param targetType - the type of the output
+	 * @param images - the input images
+	 * @param size - the size of the output
+	 * @param numChannels - how many channels are fused at once
+	 * @param subpixelResolution - use linear interpolation
+	 * @param downsampling - the input is downsampled, or null
+	 * @return - the number of bytes
+	 */
+	protected static long estimateVolumeMemory( final RealType< ? > targetType, final ArrayList< ImagePlus > images, final int[] size, final int numChannels,
+			final boolean subpixelResolution, final int[] downsampling )
+	{
+		long outputPixels = 1;
+		
+		for ( final int s : size )
+			outputPixels *= s;
+		
+		long bytes = outputPixels * RowAccess.getBytesPerPixel( targetType );
+		
+		if ( scatterFusion )
+			bytes += outputPixels * 8;
+		
+		if ( downsampling != null )
+		{
+			long inputPixels = 0;
+			
+			for ( final ImagePlus imp : images )
+				inputPixels += (long)imp.getWidth() * imp.getHeight() * imp.getNSlices();
+			
+			for ( final int factor : downsampling )
+				inputPixels /= factor;
+			
+			bytes += inputPixels * 4;
+		}
+		
+		return bytes * numChannels;
+	}
+	
+	/**
+	 * Fuses one channel and timepoint
+	 * 
+	 * @param scaledModels - the transformations for the downsampled images, or null
+	 * @param c - the channel (1-based)
+	 * @param t - the timepoint (1-based)
+	 * @param projection - the projection along z that is computed while fusing, or null
+	 * @return - the fused image, or null if it was written to disk
+	 */
+	protected static < T extends RealType< T > > Image< T > fuseVolume( final T targetType, final ImageFactory< T > f, final ArrayList< ImagePlus > images, 
+			final ArrayList< InvertibleBoundable > models, final ArrayList< InvertibleBoundable > scaledModels, final int dimensionality, final boolean subpixelResolution, 
+			final int fusionType, final String outputDirectory, final boolean noOverlap, final boolean ignoreZeroValues, final boolean displayImages, final int[] downsampling, 
+			final float[] offset, final int[] size, final int c, final int t, final int numChannels, final int numTimePoints, final Projection projection )
+	{
+		IJ.showStatus("Fusing time point: " + t + " of " + numTimePoints + ", " +
+			"channel: " + c + " of " + numChannels + "...");
+		
+		// create the 2d/3d target image for the current channel and timepoint 
+		final Image< T > out;
+		
+		// we just create one slice if we write to disk
+		if ( outputDirectory == null )
+			out = f.createImage( size );
+		else
+			out = f.createImage( new int[] { size[ 0 ], size[ 1 ] } ); // just create a slice
+
+		boolean fused = false;
+		
+		// fuse tiles that are averaged down to the output scale
+		if ( downsampling != null )
+		{
+			final ArrayList< ImageInterpolation< FloatType > > blockData = downsampleImages( images, c, t, downsampling, subpixelResolution, ignoreZeroValues );
+			final PixelFusion fusion = createPixelFusion( fusionType, ignoreZeroValues, 0, blockData );
+			
+			if ( outputDirectory == null )
+			{
+				if ( !TranslationFusion.isTranslation( scaledModels ) || !TranslationFusion.fuse( out, blockData, offset, scaledModels, fusion, displayImages, subpixelResolution ) )
+					fuseBlock( out, blockData, offset, scaledModels, fusion, displayImages );
+			}
+			else
+			{
+				final int numSlices;
+				
+				if ( dimensionality == 2 )
+					numSlices = 1;
+				else
+					numSlices = size[ 2 ];
+				
+				writeBlock( out, numSlices, t, numTimePoints, c, numChannels, blockData, offset, scaledModels, fusion, outputDirectory, projection );
+				out.close();
+			}
+			
+			fused = true;
+		}
+		
+		// tiles that do not overlap are simply copied
+		if ( !fused && !noOverlap && outputDirectory == null && isNonOverlapping( images, models, dimensionality ) )
+		{
+			fuseBlockNoOverlap( out, wrapImages( images, c, t ), offset, models, displayImages );
+			fused = true;
+		}
+		
+		// add one tile after the other
+		if ( !fused && scatterFusion && outputDirectory == null && !noOverlap && ScatterFusion.isSupported( fusionType ) )
+		{
+			ScatterFusion.fuse( out, images, c, t, offset, models, fusionType, ignoreZeroValues, subpixelResolution );
+			fused = true;
+		}
+		
+		// translations can be interpolated directly on the ImageJ arrays, without converting to float
+		if ( !fused && subpixelResolution && outputDirectory == null && TranslationFusion.isTranslation( models ) )
+		{
+			final ArrayList< ImageInterpolation< ? extends RealType< ? > > > blockData = wrapImages( images, c, t );
+			final PixelFusion fusion = createPixelFusion( fusionType, ignoreZeroValues, 0, blockData );
+			
+			fused = TranslationFusion.fuse( out, blockData, offset, models, fusion, displayImages, true );
+		}
+		
+		// extract the complete blockdata
+		if ( subpixelResolution && !fused )
+		{
+			final ArrayList< ImageInterpolation< ? extends RealType< ? > > > blockData = interpolateImages( images, c, t );
+			final PixelFusion fusion = createPixelFusion( fusionType, ignoreZeroValues, 0, blockData );
+			
+			if ( outputDirectory == null )
+			{
+				fuseBlock( out, blockData, offset, models, fusion, displayImages );
+			}
+			else
+			{
+				final int numSlices;
+				
+				if ( dimensionality == 2 )
+					numSlices = 1;
+				else
+					numSlices = size[ 2 ];
+				
+				writeBlock( out, numSlices, t, numTimePoints, c, numChannels, blockData, offset, models, fusion, outputDirectory, projection );
+				out.close();
+			}
+		}
+		else if ( !fused )
+		{
+			// can be a mixture of different RealTypes
+			final ArrayList< ImageInterpolation< ? extends RealType< ? > > > blockData = wrapImages( images, c, t );
+			
+			// without interpolation 8-bit and 16-bit values stay integers
+			final PixelFusion fusion = createPixelFusion( fusionType, ignoreZeroValues, getMaxIntegerValue( targetType ), blockData );
+			
+			if ( outputDirectory == null )
+			{
+				if ( noOverlap )
+					fuseBlockNoOverlap( out, blockData, offset, models, displayImages );
+				else if ( !TranslationFusion.isTranslation( models ) || !TranslationFusion.fuse( out, blockData, offset, models, fusion, displayImages, false ) )
+					fuseBlock( out, blockData, offset, models, fusion, displayImages ); // not only translations or not stored as ImagePlus
+			}
+			else
+			{
+				final int numSlices;
+				
+				if ( dimensionality == 2 )
+					numSlices = 1;
+				else
+					numSlices = size[ 2 ];
+				
+				writeBlock( out, numSlices, t, numTimePoints, c, numChannels, blockData, offset, models, fusion, outputDirectory, projection );
+				out.close();
+			}
+		}
+		
+		// has been written to disk ...
+		if ( outputDirectory != null )
+			return null;
+		
+		if ( projection != null )
+			projection.addImage( out );
+		
+		return out;
+	}
+	
+	/**
+	 * Fuses all channels of one timepoint in one pass
+	 * 
+	 * @param targetType - the type of the output
+	 * @param f - creates the output images
+	 * @param size - the size of the output images
+	 * @param images - the input images
+	 * @param t - the timepoint
+	 * @param offset - the offset of the output images
+	 * @param models - the transformations
+	 * @param subpixelResolution - use linear interpolation
+	 * @param fusionType - 0 == blending, 1 == average, 2 == median, 3 == max, 4 == min
+	 * @param ignoreZeroValues - do not use pixels that are 0
+	 * @param displayImages - show the first channel while fusing
+	 * @return - the fused images of all channels
+	 */
+	protected static < T extends RealType< T > > ArrayList< Image< T > > fuseChannels( final T targetType, final ImageFactory< T > f, final int[] size, final ArrayList< ImagePlus > images,
+			final int t, final float[] offset, final ArrayList< InvertibleBoundable > models, final boolean subpixelResolution, final int fusionType,
+			final boolean ignoreZeroValues, final boolean displayImages )
+	{
+		final int numChannels = images.get( 0 ).getNChannels();
+		
+		final ArrayList< Image< T > > out = new ArrayList< Image< T > >();
+		final FusionOutput[] outputs = new FusionOutput[ numChannels ];
+		final ArrayList< ArrayList< ? extends ImageInterpolation< ? extends RealType< ? > > > > blockData = new ArrayList< ArrayList< ? extends ImageInterpolation< ? extends RealType< ? > > > >();
+		
+		for ( int c = 1; c <= numChannels; ++c )
+		{
+			out.add( f.createImage( size ) );
+			outputs[ c - 1 ] = new ImageFusionOutput< T >( out.get( c - 1 ) );
+			
+			if ( subpixelResolution )
+				blockData.add( interpolateImages( images, c, t ) );
+			else
+				blockData.add( wrapImages( images, c, t ) );
+		}
+		
+		// without interpolation 8-bit and 16-bit values stay integers
+		final PixelFusion fusion = createPixelFusion( fusionType, ignoreZeroValues, subpixelResolution ? 0 : getMaxIntegerValue( targetType ), blockData.get( 0 ) );
+		final TileIndex index = new TileIndex( size, offset, TileIndex.getImageSizes( blockData.get( 0 ) ), models, TileIndex.getDefaultBlockSize( size.length ) );
+		
+		ImagePlus fusionImp = null;
+		
+		if ( displayImages )
+		{
+			try
+			{
+				fusionImp = ((ImagePlusContainer<?, ?>) out.get( 0 ).getContainer()).getImagePlus();
+			}
+			catch ( ImgLibException e )
+			{
+				IJ.log( "Output image has no ImageJ type: " + e );
+			}
+		}
+		
+		fuseBlock( outputs, blockData, offset, models, fusion, fusionImp, index, null );
+		
+		return out;
+	}
+	
+	/**
+	 * Creates a virtual stack of the fusion, the planes are only fused when they are shown (see {@link FusedVirtualStack})
+	 * 
+	 * @param targetType - the type of the output
+	 * @param images - the input images
+	 * @param models - the transformations
+	 * @param dimensionality - 2 or 3
+	 * @param subpixelResolution - use linear interpolation
+	 * @param fusionType - 0 == blending, 1 == average, 2 == median, 3 == max, 4 == min
+	 * @param ignoreZeroValues - do not use pixels that are 0
+	 * @return - the virtual hyperstack
+	 */
+	public static < T extends RealType< T > > ImagePlus fuseVirtual( final T targetType, final ArrayList< ImagePlus > images, final ArrayList< InvertibleBoundable > models, 
+			final int dimensionality, final boolean subpixelResolution, final int fusionType, final boolean ignoreZeroValues )
+	{
+		final float[] offset = new float[ dimensionality ];
+		final int[] size = getOutputSize( offset, images, models, dimensionality, subpixelResolution );
+		
+		return new FusedVirtualStack< T >( targetType, images, models, subpixelResolution, fusionType, ignoreZeroValues, offset, size ).getImagePlus();
+	}
+	
+	/**
+	 * Fuses one channel and timepoint into sparse cells, only the cells that are covered by tiles use memory. Like this the
+	 * output can be larger than what fits into an ImagePlus.
+	 * 
+	 * @param targetType - the type of the cells
+	 * @param images - the input images
+	 * @param models - the transformations
+	 * @param dimensionality - 2 or 3
+	 * @param subpixelResolution - use linear interpolation
+	 * @param fusionType - 0 == blending, 1 == average, 2 == median, 3 == max, 4 == min
+	 * @param ignoreZeroValues - do not use pixels that are 0
+	 * @param c - the channel (1-based)
+	 * @param t - the timepoint (1-based)
+	 * @param offset - the offset of the output image, will be computed
+	 * @return - the fused cells
+	 */
+	public static < T extends RealType< T > > CellFusionOutput fuseSparse( final T targetType, final ArrayList< ImagePlus > images, final ArrayList< InvertibleBoundable > models, 
+			final int dimensionality, final boolean subpixelResolution, final int fusionType, final boolean ignoreZeroValues, final int c, final int t, final float[] offset )
+	{
+		final int[] size = getOutputSize( offset, images, models, dimensionality, subpixelResolution );
+		
+		// the cells are the blocks of the fusion, so every block allocates at most one cell
+		final CellFusionOutput output = new CellFusionOutput( size, TileIndex.getDefaultBlockSize( dimensionality ), targetType );
+		fuse( output, targetType, images, models, subpixelResolution, fusionType, ignoreZeroValues, c, t, offset );
+		
+		return output;
+	}
+	
+	/**
+	 * Fuses one channel and timepoint into a raw file that is mapped into memory, so the fused image does not have to fit
+	 * into the Java heap. Use {@link MappedFusionOutput#getImagePlus()} to open it.
+	 * 
+	 * @param targetType - the type of the pixels
+	 * @param images - the input images
+	 * @param models - the transformations
+	 * @param dimensionality - 2 or 3
+	 * @param subpixelResolution - use linear interpolation
+	 * @param fusionType - 0 == blending, 1 == average, 2 == median, 3 == max, 4 == min
+	 * @param ignoreZeroValues - do not use pixels that are 0
+	 * @param c - the channel (1-based)
+	 * @param t - the timepoint (1-based)
+	 * @param offset - the offset of the output image, will be computed
+	 * @param file - the raw file, will be overwritten
+	 * @return - the output, already closed
+	 * @throws IOException
+	 */
+	public static < T extends RealType< T > > MappedFusionOutput fuseMapped( final T targetType, final ArrayList< ImagePlus > images, final ArrayList< InvertibleBoundable > models, 
+			final int dimensionality, final boolean subpixelResolution, final int fusionType, final boolean ignoreZeroValues, final int c, final int t, final float[] offset,
+			final File file ) throws IOException
+	{
+		final int[] size = getOutputSize( offset, images, models, dimensionality, subpixelResolution );
+		
+		final MappedFusionOutput output = new MappedFusionOutput( file, size, targetType );
+		
+		try
+		{
+			fuse( output, targetType, images, models, subpixelResolution, fusionType, ignoreZeroValues, c, t, offset );
+		}
+		finally
+		{
+			output.close();
+		}
+		
+		return output;
+	}
+	
+	/**
+	 * Fuses all channels and timepoints into an N5 dataset (XYZCT), the chunks are written by the fusion threads directly.
+	 * 
+	 * @param targetType - the type of the dataset
+	 * @param images - the input images
+	 * @param models - the transformations
+	 * @param dimensionality - 2 or 3
+	 * @param subpixelResolution - use linear interpolation
+	 * @param fusionType - 0 == blending, 1 == average, 2 == median, 3 == max, 4 == min
+	 * @param ignoreZeroValues - do not use pixels that are 0
+	 * @param root - the directory of the N5 container
+	 * @param dataset - the name of the dataset, the chunks of an existing dataset are deleted
+	 * @throws IOException - if the dataset cannot be created or a chunk cannot be written
+	 */
+	public static < T extends RealType< T > > void fuseN5( final T targetType, final ArrayList< ImagePlus > images, final ArrayList< InvertibleBoundable > models, 
+			final int dimensionality, final boolean subpixelResolution, final int fusionType, final boolean ignoreZeroValues, final File root, final String dataset ) throws IOException
+	{
+		final float[] offset = new float[ dimensionality ];
+		final int[] size = getOutputSize( offset, images, models, dimensionality, subpixelResolution );
+		final int numTimePoints = images.get( 0 ).getNFrames();
+		final int numChannels = images.get( 0 ).getNChannels();
+		final int[] chunkSize = N5FusionOutput.getDefaultChunkSize( dimensionality );
+		
+		final File datasetDir = N5FusionOutput.createDataset( root, dataset, size, numChannels, numTimePoints, chunkSize, targetType );
+		
+		// all channels of a timepoint are fused in one pass
+		for ( int t = 1; t <= numTimePoints; ++t )
+		{
+			IJ.showStatus("Fusing time point: " + t + " of " + numTimePoints + "...");
+			
+			final N5FusionOutput[] outputs = new N5FusionOutput[ numChannels ];
+			
+			for ( int c = 1; c <= numChannels; ++c )
+				outputs[ c - 1 ] = new N5FusionOutput( datasetDir, size, chunkSize, targetType, c - 1, t - 1 );
+			
+			fuse( outputs, targetType, images, models, subpixelResolution, fusionType, ignoreZeroValues, t, offset );
+			
+			// chunks that could not be written (e.g. the disk is full)
+			for ( final N5FusionOutput output : outputs )
+				output.checkError();
+		}
+		
+		IJ.showStatus( "Fusion complete." );
+		IJ.showProgress( 1.01 );
+	}
+	
+	/**
+	 * Fuses one channel and timepoint into any {@link FusionOutput}
+	 * 
+	 * @param output - where to put the result, has the size computed by {@link #getOutputSize(float[], List, ArrayList, int, boolean)}
+	 * @param targetType - the type of the output
+	 * @param images - the input images
+	 * @param models - the transformations
+	 * @param subpixelResolution - use linear interpolation
+	 * @param fusionType - 0 == blending, 1 == average, 2 == median, 3 == max, 4 == min
+	 * @param ignoreZeroValues - do not use pixels that are 0
+	 * @param c - the channel (1-based)
+	 * @param t - the timepoint (1-based)
+	 * @param offset - the offset of the output image
+	 */
+	public static void fuse( final FusionOutput output, final RealType< ? > targetType, final ArrayList< ImagePlus > images, final ArrayList< InvertibleBoundable > models, 
+			final boolean subpixelResolution, final int fusionType, final boolean ignoreZeroValues, final int c, final int t, final float[] offset )
+	{
+		final ArrayList< ? extends ImageInterpolation< ? extends RealType< ? > > > blockData;
+		
+		if ( subpixelResolution )
+			blockData = interpolateImages( images, c, t );
+		else
+			blockData = wrapImages( images, c, t );
+		
+		final PixelFusion fusion = createPixelFusion( fusionType, ignoreZeroValues, subpixelResolution ? 0 : getMaxIntegerValue( targetType ), blockData );
+		
+		fuseBlock( output, blockData, offset, models, fusion, null );
+	}
+	
+	/**
+	 * Fuses all channels of one timepoint in one pass into any {@link FusionOutput}s, every location is transformed only once
+	 * 
+	 * @param outputs - where to put the result of each channel, all of the size computed by {@link #getOutputSize(float[], List, ArrayList, int, boolean)}
+	 * @param targetType - the type of the output
+	 * @param images - the input images
+	 * @param models - the transformations
+	 * @param subpixelResolution - use linear interpolation
+	 * @param fusionType - 0 == blending, 1 == average, 2 == median, 3 == max, 4 == min
+	 * @param ignoreZeroValues - do not use pixels that are 0
+	 * @param t - the timepoint (1-based)
+	 * @param offset - the offset of the output image
+	 */
+	public static void fuse( final FusionOutput[] outputs, final RealType< ? > targetType, final ArrayList< ImagePlus > images, final ArrayList< InvertibleBoundable > models, 
+			final boolean subpixelResolution, final int fusionType, final boolean ignoreZeroValues, final int t, final float[] offset )
+	{
+		final ArrayList< ArrayList< ? extends ImageInterpolation< ? extends RealType< ? > > > > blockData = new ArrayList< ArrayList< ? extends ImageInterpolation< ? extends RealType< ? > > > >();
+		
+		for ( int c = 1; c <= outputs.length; ++c )
+		{
+			if ( subpixelResolution )
+				blockData.add( interpolateImages( images, c, t ) );
+			else
+				blockData.add( wrapImages( images, c, t ) );
+		}
+		
+		final PixelFusion fusion = createPixelFusion( fusionType, ignoreZeroValues, subpixelResolution ? 0 : getMaxIntegerValue( targetType ), blockData.get( 0 ) );
+		final TileIndex index = new TileIndex( outputs[ 0 ].getDimensions(), offset, TileIndex.getImageSizes( blockData.get( 0 ) ), models, getBlockSize( outputs[ 0 ] ) );
+		
+		fuseBlock( outputs, blockData, offset, models, fusion, null, index, null );
+	}
+	
+	/**
+	 * Fuses again only the blocks of an existing fusion of one channel and timepoint that are covered by tiles whose 
+	 * model changed, before or after the change. The blocks each tile contributes to are taken from the {@link TileIndex} 
+	 * of the old and the new models, only the tiles that overlap with these blocks are loaded. The output keeps its size 
+	 * and offset, parts of moved tiles that are now outside of it are lost.
+	 * 
+	 * @param output - the existing fusion (e.g. an {@link ImageFusionOutput}, or the file of a {@link MappedFusionOutput} opened with
+	 * {@link MappedFusionOutput#open(File, int[], RealType)}, the constructor would overwrite it)
+	 * @param targetType - the type of the output
+	 * @param images - the input images
+	 * @param oldModels - the transformations the output was fused with
+	 * @param newModels - the new transformations
+	 * @param subpixelResolution - use linear interpolation
+	 * @param fusionType - 0 == blending, 1 == average, 2 == median, 3 == max, 4 == min
+	 * @param ignoreZeroValues - do not use pixels that are 0
+	 * @param c - the channel (1-based)
+	 * @param t - the timepoint (1-based)
+	 * @param offset - the offset of the output image
+	 * @return - the number of blocks that were fused again
+	 */
+	public static int refuse( final FusionOutput output, final RealType< ? > targetType, final ArrayList< ImagePlus > images, final ArrayList< InvertibleBoundable > oldModels,
+			final ArrayList< InvertibleBoundable > newModels, final boolean subpixelResolution, final int fusionType, final boolean ignoreZeroValues, final int c, final int t, final float[] offset )
+	{
+		final int[] size = output.getDimensions();
+		final int numImages = images.size();
+		final int[][] imgSizes = getImageSizes( images, size.length );
+		
+		// where the tiles were and where they are now
+		final TileIndex oldIndex = new TileIndex( size, offset, imgSizes, oldModels, getBlockSize( output ) );
+		final TileIndex index = new TileIndex( size, offset, imgSizes, newModels, getBlockSize( output ) );
+		final boolean[] selectedBlocks = new boolean[ index.getNumBlocks() ];
+		
+		for ( int i = 0; i < numImages; ++i )
+			if ( hasMoved( oldModels.get( i ), newModels.get( i ), imgSizes[ i ] ) )
+			{
+				oldIndex.markBlocks( i, selectedBlocks );
+				index.markBlocks( i, selectedBlocks );
+			}
+		
+		// the tiles that are needed for these blocks
+		final boolean[] needed = new boolean[ numImages ];
+		int numBlocks = 0;
+		
+		for ( int b = 0; b < selectedBlocks.length; ++b )
+			if ( selectedBlocks[ b ] )
+			{
+				++numBlocks;
+				
+				for ( final int tile : index.getTiles( b ) )
+					needed[ tile ] = true;
+			}
+		
+		if ( numBlocks == 0 )
+			return 0;
+		
+		final ArrayList< ImageInterpolation< ? extends RealType< ? > > > blockData = new ArrayList< ImageInterpolation< ? extends RealType< ? > > >();
+		final FlatFieldCorrection[] corrections = getCorrections( images, c );
+		
+		for ( int i = 0; i < numImages; ++i )
+		{
+			if ( !needed[ i ] )
+				blockData.add( null );
+			else if ( subpixelResolution )
+				blockData.add( interpolateImage( images.get( i ), c, t, true, corrections[ i ] ) );
+			else
+				blockData.add( wrapImage( images.get( i ), c, t, corrections[ i ] ) );
+		}
+		
+		final PixelFusion fusion = createPixelFusion( fusionType, ignoreZeroValues, subpixelResolution ? 0 : getMaxIntegerValue( targetType ), imgSizes );
+		
+		fuseBlock( output, blockData, offset, newModels, fusion, null, index, selectedBlocks );
+		
+		return numBlocks;
+	}
+	
+	/**
+	 * @param oldModel - the old transformation of a tile
+	 * @param newModel - the new transformation of the tile
+	 * @param imgSize - the size of the tile
+	 * @return - true if the corners of the tile are transformed differently
+	 */
+	protected static boolean hasMoved( final InvertibleBoundable oldModel, final InvertibleBoundable newModel, final int[] imgSize )
+	{
+		if ( oldModel == newModel )
+			return false;
+		
+		final int n = imgSize.length;
+		final float[] a = new float[ n ];
+		final float[] b = new float[ n ];
+		
+		for ( int i = 0; i < ( 1 << n ); ++i )
+		{
+			for ( int d = 0; d < n; ++d )
+				a[ d ] = b[ d ] = ( i & ( 1 << d ) ) == 0 ? 0 : imgSize[ d ] - 1;
+			
+			oldModel.applyInPlace( a );
+			newModel.applyInPlace( b );
+			
+			if ( !Arrays.equals( a, b ) )
+				return true;
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * @param output - the output of the fusion
+	 * @return - the size of the blocks the output is fused in
+	 */
+	protected static int[] getBlockSize( final FusionOutput output )
+	{
+		if ( output instanceof BlockFusionOutput )
+			return ( (BlockFusionOutput)output ).getBlockSize();
+		else
+			return TileIndex.getDefaultBlockSize( output.getDimensions().length );
+	}
+	
+	/**
+	 * Computes the size and offset of the fused image
+	 * 
+	 * @param offset - the offset of the output image, will be computed
+	 * @param images - the input images
+	 * @param models - the transformations
+	 * @param dimensionality - 2 or 3
+	 * @param subpixelResolution - with subpixel resolution the output is one pixel larger in each dimension
+	 * @return - the size
+	 */
+	public static int[] getOutputSize( final float[] offset, final List< ImagePlus > images, final ArrayList< InvertibleBoundable > models, 
+			final int dimensionality, final boolean subpixelResolution )
+	{
+		final int[] size = new int[ dimensionality ];
+		
+		estimateBounds( offset, size, images, models, dimensionality );
+		
+		if ( subpixelResolution )
+			for ( int d = 0; d < size.length; ++d )
+				++size[ d ];
+		
+		return size;
+	}
+	
+	/**
+	 * Creates the {@link PixelFusion}
+	 * 
+	 * @param fusionType - 0 == blending, 1 == average, 2 == median, 3 == max, 4 == min
+	 * @param ignoreZeroValues - do not use pixels that are 0
+	 * @param maxValue - the maximal value if all values are integers (8 or 16 bit without interpolation), otherwise 0
+	 * @param blockData - the input images (for the blending)
+	 * @return - the fusion
+	 */
+	protected static PixelFusion createPixelFusion( final int fusionType, final boolean ignoreZeroValues, final int maxValue, final ArrayList< ? extends ImageInterpolation< ? > > blockData )
+	{
+		return createPixelFusion( fusionType, ignoreZeroValues, maxValue, TileIndex.getImageSizes( blockData ) );
+	}
+	
+	/**
+	 * Creates the {@link PixelFusion}
+	 * 
+	 * @param fusionType - 0 == blending, 1 == average, 2 == median, 3 == max, 4 == min
+	 * @param ignoreZeroValues - do not use pixels that are 0
+	 * @param maxValue - the maximal value if all values are integers (8 or 16 bit without interpolation), otherwise 0
+	 * @param imgSizes - the dimensions of all input images (for the blending)
+	 * @return - the fusion
+	 */
+	protected static PixelFusion createPixelFusion( final int fusionType, final boolean ignoreZeroValues, final int maxValue, final int[][] imgSizes )
+	{
+		if ( fusionType == 0 )
+		{
+			if ( ignoreZeroValues )
+				return new BlendingPixelFusionIgnoreZero( imgSizes );
+			else
+				return new BlendingPixelFusion( imgSizes );
+		}
+		else if ( fusionType == 1 )
+		{
+			if ( ignoreZeroValues )
+				return new AveragePixelFusionIgnoreZero();
+			else
+				return new AveragePixelFusion();
+		}
+		else if ( fusionType == 2 )
+		{
+			// clearRow() allocates a buffer of this size for every pixel of a row, so it must not scale with
+			// the number of tiles; four covers the corner of a regular grid, deeper overlaps grow the buffers
+			if ( ignoreZeroValues )
+				return new MedianPixelFusionIgnoreZero( maxValue, 4 );
+			else
+				return new MedianPixelFusion( maxValue, 4 );
+		}
+		else if ( fusionType == 3 )
+		{
+			if ( ignoreZeroValues )
+				return new MaxPixelFusionIgnoreZero();
+			else
+				return new MaxPixelFusion();
+		}
+		else if ( fusionType == 4 )
+		{
+			if ( ignoreZeroValues )
+				return new MinPixelFusionIgnoreZero();
+			else
+				return new MinPixelFusion();	
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Wraps one channel and timepoint of all images without copying, with linear interpolation that converts to float on the fly
+	 * 
+	 * @param images - the images
+	 * @param c - the channel
+	 * @param t - the timepoint
+	 * @return - a mixture of {@link FloatType}, {@link UnsignedShortType} and {@link UnsignedByteType} images
+	 */
+	protected static ArrayList< ImageInterpolation< ? extends RealType< ? > > > interpolateImages( final ArrayList< ImagePlus > images, final int c, final int t )
+	{
+		final ArrayList< ImageInterpolation< ? extends RealType< ? > > > blockData = new ArrayList< ImageInterpolation< ? extends RealType< ? > > >();
+		final FlatFieldCorrection[] corrections = getCorrections( images, c );
+		
+		for ( int i = 0; i < images.size(); ++i )
+			blockData.add( interpolateImage( images.get( i ), c, t, true, corrections[ i ] ) );
+		
+		return blockData;
+	}
+	
+	/**
+	 * Wraps one channel and timepoint of an image without copying, with linear interpolation that converts to float on the fly.
+	 * Only virtual stacks are still converted to float.
+	 * 
+	 * @param imp - the image
+	 * @param c - the channel
+	 * @param t - the timepoint
+	 * @param mirror - mirror at the borders of the image (otherwise we get black areas at the first and last pixel of each image), or 0 outside
+	 * @return - the wrapped image
+	 */
+	protected static ImageInterpolation< ? extends RealType< ? > > interpolateImage( final ImagePlus imp, final int c, final int t, final boolean mirror )
+	{
+		return interpolateImage( imp, c, t, mirror, getCorrection( imp, c ) );
+	}
+	
+	/**
+	 * Same as {@link #interpolateImage(ImagePlus, int, int, boolean)} with a given flat-field correction
+	 * 
+	 * @param correction - the correction of this channel, can be null
+	 */
+	protected static ImageInterpolation< ? extends RealType< ? > > interpolateImage( final ImagePlus imp, final int c, final int t, final boolean mirror, final FlatFieldCorrection correction )
+	{
+		final ImagePlus chunk = Hyperstack_rearranger.getImageChunk( imp, c, t );
+		
+		if ( RowAccess.getPlanes( chunk ) == null )
+			return new ImageInterpolation<FloatType>( ImageJFunctions.convertFloat( chunk ), new LinearInterpolatorFactory<FloatType>( mirror ?
+					new OutOfBoundsStrategyMirrorFactory<FloatType>() : new OutOfBoundsStrategyValueFactory<FloatType>() ), correction );
+		
+		if ( imp.getType() == ImagePlus.GRAY32 )
+			return new LinearImageInterpolation<FloatType>( ImageJFunctions.wrapFloat( chunk ), 
+					new LinearInterpolatorFactory< FloatType >( new OutOfBoundsStrategyMirrorFactory<FloatType>() ), mirror, correction );
+		else if ( imp.getType() == ImagePlus.GRAY16 )
+			return new LinearImageInterpolation<UnsignedShortType>( ImageJFunctions.wrapShort( chunk ), 
+					new LinearInterpolatorFactory< UnsignedShortType >( new OutOfBoundsStrategyMirrorFactory<UnsignedShortType>() ), mirror, correction );
+		else
+			return new LinearImageInterpolation<UnsignedByteType>( ImageJFunctions.wrapByte( chunk ), 
+					new LinearInterpolatorFactory< UnsignedByteType >( new OutOfBoundsStrategyMirrorFactory<UnsignedByteType>() ), mirror, correction );
+	}
+	
+	/**
+	 * @param imp - one of the tiles
+	 * @param c - the channel (1-based)
+	 * @return - the flat-field correction of this channel from {@link #flatField} and {@link #darkFrame}, or null
+	 */
+	protected static FlatFieldCorrection getCorrection( final ImagePlus imp, final int c )
+	{
+		// 8-bit and 16-bit tiles are fused into the same type, values outside of its range would wrap around
+		return FlatFieldCorrection.create( flatField, darkFrame, c, imp.getWidth(), imp.getHeight(), getCorrectionMaxValue( imp ) );
+	}
+	
+	/**
+	 * @param imp - one of the tiles
+	 * @return - the largest value the corrected pixels of this tile are clamped to, 0 for float tiles (no clamping)
+	 */
+	protected static int getCorrectionMaxValue( final ImagePlus imp )
+	{
+		if ( imp.getType() == ImagePlus.GRAY32 )
+			return 0;
+		else if ( imp.getType() == ImagePlus.GRAY16 )
+			return 65535;
+		else
+			return 255;
+	}
+	
+	/**
+	 * @param images - all tiles
+	 * @param c - the channel (1-based)
+	 * @return - the flat-field correction of this channel for each tile, or null where there is none, tiles of the
+	 * same size and type share one
+	 */
+	protected static FlatFieldCorrection[] getCorrections( final List< ImagePlus > images, final int c )
+	{
+		final FlatFieldCorrection[] corrections = new FlatFieldCorrection[ images.size() ];
+		
+		if ( flatField == null && darkFrame == null )
+			return corrections;
+		
+		final HashMap< String, FlatFieldCorrection > shared = new HashMap< String, FlatFieldCorrection >();
+		
+		for ( int i = 0; i < corrections.length; ++i )
+		{
+			final ImagePlus imp = images.get( i );
+			final String key = imp.getWidth() + "x" + imp.getHeight() + "/" + getCorrectionMaxValue( imp );
+			
+			// a tile that does not match the flat-field is logged only once per size
+			if ( !shared.containsKey( key ) )
+				shared.put( key, getCorrection( imp, c ) );
+			
+			corrections[ i ] = shared.get( key );
+		}
+		
+		return corrections;
+	}
+	
+	/**
+	 * Wraps one channel and timepoint of all images without copying, using nearest neighbor interpolation
+	 * 
+	 * @param images - all input images
+	 * @param c - the channel
+	 * @param t - the timepoint
+	 * @return - a mixture of {@link FloatType}, {@link UnsignedShortType} and {@link UnsignedByteType} images
+	 */
+	protected static ArrayList< ImageInterpolation< ? extends RealType< ? > > > wrapImages( final ArrayList< ImagePlus > images, final int c, final int t )
+	{
+		// can be a mixture of different RealTypes
+		final ArrayList< ImageInterpolation< ? extends RealType< ? > > > blockData = new ArrayList< ImageInterpolation< ? extends RealType< ? > > >();
+		final FlatFieldCorrection[] corrections = getCorrections( images, c );
+
+		for ( int i = 0; i < images.size(); ++i )
+			blockData.add( wrapImage( images.get( i ), c, t, corrections[ i ] ) );
+		
+		return blockData;
+	}
+	
+	/**
+	 * Downsamples one channel and timepoint of all images by averaging boxes of factor^n pixels (multithreaded over the images)
+	 * 
+	 * @param images - the images
+	 * @param c - the channel
+	 * @param t - the timepoint
+	 * @param factors - the downsampling in each dimension
+	 * @param interpolate - use linear interpolation instead of nearest neighbor
+	 * @param ignoreZeroValues - do not average pixels that are 0
+	 * @return - the downsampled images
+	 */
+	protected static ArrayList< ImageInterpolation< FloatType > > downsampleImages( final ArrayList< ImagePlus > images, final int c, final int t, final int[] factors,
+			final boolean interpolate, final boolean ignoreZeroValues )
+	{
+		final int numImages = images.size();
+		final ImagePlus[] downsampled = new ImagePlus[ numImages ];
+		final FlatFieldCorrection[] corrections = getCorrections( images, c );
+		
+		final AtomicInteger ai = new AtomicInteger( 0 );
+		final Thread[] threads = SimpleMultiThreading.newThreads( Math.min( numImages, newThreads().length ) );
+		
+		for ( int ithread = 0; ithread < threads.length; ++ithread )
+			threads[ ithread ] = new Thread( new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					for ( int i = ai.getAndIncrement(); i < numImages; i = ai.getAndIncrement() )
+						downsampled[ i ] = downsample( Hyperstack_rearranger.getImageChunk( images.get( i ), c, t ), factors, ignoreZeroValues, corrections[ i ] );
+				}
+			});
+		
+		SimpleMultiThreading.startAndJoin( threads );
+		
+		final InterpolatorFactory< FloatType > interpolatorFactory;
+		
+		if ( interpolate )
+			interpolatorFactory = new LinearInterpolatorFactory<FloatType>( new OutOfBoundsStrategyMirrorFactory<FloatType>() );
+		else
+			interpolatorFactory = new NearestNeighborInterpolatorFactory<FloatType>( new OutOfBoundsStrategyValueFactory<FloatType>() );
+		
+		final ArrayList< ImageInterpolation< FloatType > > blockData = new ArrayList< ImageInterpolation< FloatType > >();
+		
+		for ( final ImagePlus imp : downsampled )
+		{
+			if ( interpolate )
+				blockData.add( new LinearImageInterpolation<FloatType>( ImageJFunctions.wrapFloat( imp ), interpolatorFactory, true ) );
+			else
+				blockData.add( new ImageInterpolation<FloatType>( ImageJFunctions.wrapFloat( imp ), interpolatorFactory ) );
+		}
+		
+		return blockData;
+	}
+	
+	/**
+	 * Averages boxes of factor^n pixels, the boxes at the border of the image may be smaller
+	 * 
+	 * @param imp - one channel and timepoint (2d or 3d)
+	 * @param factors - the downsampling in each dimension
+	 * @param ignoreZeroValues - do not average pixels that are 0
+	 * @param correction - the flat-field correction that is applied before averaging, can be null
+	 * @return - the downsampled image (32-bit)
+	 */
+	protected static ImagePlus downsample( final ImagePlus imp, final int[] factors, final boolean ignoreZeroValues, final FlatFieldCorrection correction )
+	{
+		final ImageStack stack = imp.getStack();
+		final int w = imp.getWidth();
+		final int h = imp.getHeight();
+		final int depth = stack.getSize();
+		
+		final int fz = factors.length == 3 ? factors[ 2 ] : 1;
+		final int dw = ( w + factors[ 0 ] - 1 ) / factors[ 0 ];
+		final int dh = ( h + factors[ 1 ] - 1 ) / factors[ 1 ];
+		final int dd = ( depth + fz - 1 ) / fz;
+		
+		final ImageStack downsampled = new ImageStack( dw, dh );
+		final float[] row = new float[ w ];
+		final double[] sum = new double[ dw * dh ];
+		final int[] count = new int[ dw * dh ];
+		
+		for ( int z = 0; z < dd; ++z )
+		{
+			Arrays.fill( sum, 0 );
+			Arrays.fill( count, 0 );
+			
+			for ( int zi = z * fz; zi < Math.min( depth, ( z + 1 ) * fz ); ++zi )
+			{
+				final Object plane = stack.getPixels( zi + 1 );
+				
+				for ( int y = 0; y < h; ++y )
+				{
+					RowAccess.read( plane, y * w, row, 0, w );
+					
+					if ( correction != null )
+						correction.correctRow( row, 0, y * w, w );
+					
+					final int j = ( y / factors[ 1 ] ) * dw;
+					
+					for ( int x = 0; x < w; ++x )
+					{
+						final float value = row[ x ];
+						
+						if ( ignoreZeroValues && value == 0 )
+							continue;
+						
+						sum[ j + x / factors[ 0 ] ] += value;
+						++count[ j + x / factors[ 0 ] ];
+					}
+				}
+			}
+			
+			final float[] pixels = new float[ dw * dh ];
+			
+			for ( int j = 0; j < pixels.length; ++j )
+				if ( count[ j ] > 0 )
+					pixels[ j ] = (float)( sum[ j ] / count[ j ] );
+			
+			downsampled.addSlice( "", new FloatProcessor( dw, dh, pixels, null ) );
+		}
+		
+		return new ImagePlus( imp.getTitle(), downsampled );
+	}
+	
+	/**
+	 * Wraps one channel and timepoint of an image without copying it, with nearest neighbor interpolation
+	 * 
+	 * @param imp - the image
+	 * @param c - the channel
+	 * @param t - the timepoint
+	 * @return - the wrapped image
+	 */
+	protected static ImageInterpolation< ? extends RealType< ? > > wrapImage( final ImagePlus imp, final int c, final int t )
+	{
+		return wrapImage( imp, c, t, getCorrection( imp, c ) );
+	}
+	
+	/**
+	 * Same as {@link #wrapImage(ImagePlus, int, int)} with a given flat-field correction
+	 * 
+	 * @param correction - the correction of this channel, can be null
+	 */
+	protected static ImageInterpolation< ? extends RealType< ? > > wrapImage( final ImagePlus imp, final int c, final int t, final FlatFieldCorrection correction )
+	{
+		if ( imp.getType() == ImagePlus.GRAY32 )
+			return new ImageInterpolation<FloatType>( ImageJFunctions.wrapFloat( Hyperstack_rearranger.getImageChunk( imp, c, t ) ), 
+					new NearestNeighborInterpolatorFactory< FloatType >( new OutOfBoundsStrategyValueFactory<FloatType>() ), correction );
+		else if ( imp.getType() == ImagePlus.GRAY16 )
+			return new ImageInterpolation<UnsignedShortType>( ImageJFunctions.wrapShort( Hyperstack_rearranger.getImageChunk( imp, c, t ) ), 
+					new NearestNeighborInterpolatorFactory< UnsignedShortType >( new OutOfBoundsStrategyValueFactory<UnsignedShortType>() ), correction );
+		else
+			return new ImageInterpolation<UnsignedByteType>( ImageJFunctions.wrapByte( Hyperstack_rearranger.getImageChunk( imp, c, t ) ), 
+					new NearestNeighborInterpolatorFactory< UnsignedByteType >( new OutOfBoundsStrategyValueFactory<UnsignedByteType>() ), correction );
+	}
+	
+	/**
+	 * Fuse one slice/volume (one channel)
+	 * 
+	 * @param output - same the type of the ImagePlus input
+	 * @param input - FloatType, because of Interpolation that needs to be done
+	 * @param transform - the transformation
+	 */
+	protected static <T extends RealType<T>> void fuseBlock( final Image<T> output, final ArrayList< ? extends ImageInterpolation< ? extends RealType< ? > > > input, final float[] offset, 
+			final ArrayList< InvertibleBoundable > transform, final PixelFusion fusion, final boolean displayFusion )
+	{
+		ImagePlus fusionImp = null;
+		
+		if ( displayFusion )
+		{
+			try
+			{
+				fusionImp = ((ImagePlusContainer<?, ?>) output.getContainer()).getImagePlus();
+			}
+			catch ( ImgLibException e )
+			{
+				IJ.log( "Output image has no ImageJ type: " + e );
+			}                		
+		}
+		
+		fuseBlock( new ImageFusionOutput< T >( output ), input, offset, transform, fusion, fusionImp );
+	}
+	
+	/**
+	 * Fuse one slice/volume (one channel)
+	 * 
+	 * @param output - where to put the fused rows
+	 * @param input - FloatType, because of Interpolation that needs to be done
+	 * @param transform - the transformation
+	 * @param fusionImp - the ImagePlus of the output that is shown while fusing, or null
+	 */
+	protected static void fuseBlock( final FusionOutput output, final ArrayList< ? extends ImageInterpolation< ? extends RealType< ? > > > input, final float[] offset, 
+			final ArrayList< InvertibleBoundable > transform, final PixelFusion fusion, final ImagePlus fusionImp )
+	{
+		// which tiles contribute to which block of the output image
+		final TileIndex index = new TileIndex( output.getDimensions(), offset, TileIndex.getImageSizes( input ), transform, getBlockSize( output ) );
+		
+		fuseBlock( output, input, offset, transform, fusion, fusionImp, index, null );
+	}
+	
+	/**
+	 * Fuse some or all blocks of one slice/volume (one channel)
+	 * 
+	 * @param output - where to put the fused rows
+	 * @param input - FloatType, because of Interpolation that needs to be done, images that are in none of the selected blocks can be null
+	 * @param transform - the transformation
+	 * @param fusionImp - the ImagePlus of the output that is shown while fusing, or null
+	 * @param index - the index of the output, with the block size of {@link #getBlockSize(FusionOutput)}
+	 * @param selectedBlocks - the blocks to fuse, also the parts without any tile are written (as 0), or null to fuse all blocks into an empty output
+	 */
+	protected static void fuseBlock( final FusionOutput output, final ArrayList< ? extends ImageInterpolation< ? extends RealType< ? > > > input, final float[] offset, 
+			final ArrayList< InvertibleBoundable > transform, final PixelFusion fusion, final ImagePlus fusionImp, final TileIndex index, final boolean[] selectedBlocks )
+	{
+		fuseBlock( new FusionOutput[] { output }, RowFusion.wrap( input ), offset, transform, fusion, fusionImp, index, selectedBlocks );
+	}
+	
+	/**
+	 * Fuse some or all blocks of one slice/volume for several channels at once, every location is transformed only once for all channels
+	 * 
+	 * @param outputs - where to put the fused rows of each channel, all of the same size
+	 * @param input - the input images of each channel input[ channel ][ image ], images that are in none of the selected blocks can be null
+	 * @param transform - the transformation
+	 * @param fusionImp - the ImagePlus of the output that is shown while fusing, or null
+	 * @param index - the index of the output, with the block size of {@link #getBlockSize(FusionOutput)}
+	 * @param selectedBlocks - the blocks to fuse, also the parts without any tile are written (as 0), or null to fuse all blocks into an empty output
+	 */
+	protected static void fuseBlock( final FusionOutput[] outputs, final ArrayList< ? extends List< ? extends ImageInterpolation< ? extends RealType< ? > > > > input, final float[] offset, 
+			final ArrayList< InvertibleBoundable > transform, final PixelFusion fusion, final ImagePlus fusionImp, final TileIndex index, final boolean[] selectedBlocks )
+	{
+		final int[] size = outputs[ 0 ].getDimensions();
+		final int numDimensions = size.length;
+		final int numChannels = outputs.length;
+		
+		IJ.showProgress( 0 );
+
+		final FusionPlanner planner = new FusionPlanner( index );
+		final int blockWidth = Math.min( size[ 0 ], index.getBlockSize()[ 0 ] );
+		
+		// run multithreaded
+		final AtomicInteger ai = new AtomicInteger(0);					
+        final Thread[] threads = newThreads();
+
+        // the threads take one block after the other
+        final BlockScheduler scheduler = new BlockScheduler( index, selectedBlocks );
+        
+        for (int ithread = 0; ithread < threads.length; ++ithread)
+            threads[ithread] = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                	// Thread ID
+                	final int myNumber = ai.getAndIncrement();
+        
+                	// only the first thread does preview and update the status bar
+                	// this requires no synchronized stuff
+            		long lastDraw = 0;
+            		final ImagePlus myImp = myNumber == 0 ? fusionImp : null;
+
+                	if ( myImp != null )
+                	{
+                		myImp.setTitle( "fusing..." );
+                		myImp.show();
+                	}
+
+            		// the scratch data of this thread
+            		final RowFusion rowFusion = new RowFusion( input, transform, offset, fusion.copy() );
+            		final float[][] rows = new float[ numChannels ][ blockWidth ];
+            		
+            		final int[] min = new int[ numDimensions ];
+            		final int[] maxBlock = new int[ numDimensions ];
+            		final int[] pos = new int[ numDimensions ];
+            		
+            		try 
             		{
-                		// move to the starting position of the current thread
-            			out.fwd( startPos );
-            			
-                		// do as many pixels as wanted by this thread
-                        for ( long j = 0; j < loopSize; ++j )
+                		// do blocks until there are none left
+                        for ( int block = scheduler.nextBlock(); block >= 0; block = scheduler.nextBlock() )
                         {
-            				out.fwd();
-
             				// just thread 0
             				if ( myNumber == 0 )
             				{
-            					// just every 10000'th pixel
-            					if ( j % 10000 == 0 )
-            					{
-                    				lastDraw = drawFusion( lastDraw, fusionImp );
-            						IJ.showProgress( (double)j / (double)loopSize );
-            					}
+                				lastDraw = drawFusion( lastDraw, myImp );
+        						IJ.showProgress( scheduler.getProgress() );
             				}
             				
-            				// get the current position in the output image
-            				for ( int d = 0; d < numDimensions; ++d )
+            				final int[] tiles = index.getTiles( block );
+            				index.getBlockBounds( block, min, maxBlock );
+
+            				// only regions where tiles overlap are fused, the others are copied
+            				for ( final FusionPlanner.Region region : planner.plan( min, maxBlock, tiles ) )
             				{
-            					final float value = out.getPosition( d ) + offset[ d ];
+            					// an empty output is already 0
+            					if ( region.tiles.length == 0 && selectedBlocks == null )
+            						continue;
+            					
+            					final int width = region.max[ 0 ] - region.min[ 0 ] + 1;
+            					System.arraycopy( region.min, 0, pos, 0, numDimensions );
+	
+            					if ( region.tiles.length == 0 )
+            						for ( final float[] row : rows )
+            							Arrays.fill( row, 0 );
             					
-            					for ( int i = 0; i < numImages; ++i )
-            						tmp[ i ][ d ] = value;
+            					// fuse the region row by row
+            					do
+            					{
+            						if ( region.tiles.length > 0 )
+            							rowFusion.fuseRow( pos, width, region.tiles, rows );
+            						
+            						for ( int c = 0; c < numChannels; ++c )
+            							outputs[ c ].writeRow( pos, rows[ c ], 0, width );
+            					}
+            					while ( TileIndex.next( pos, region.min, region.max, 1 ) );
             				}
             				
-            				// transform and compute output value
-            				myFusion.clear();
-            				
-            				// loop over all images for this output location
-A:        					for ( int i = 0; i < numImages; ++i )
-        					{
-        						transform.get( i ).applyInverseInPlace( tmp[ i ] );
-            	
-        						// test if inside
-        						for ( int d = 0; d < numDimensions; ++d )
-        							if ( tmp[ i ][ d ] < 0 || tmp[ i ][ d ] > max[ i ][ d ] )
-        								continue A;
-        						
-        						in.get( i ).setPosition( tmp[ i ] );			
-        						myFusion.addValue( in.get( i ).getType().getRealFloat(), i, tmp[ i ] );
-        					}
-            				
-            				// set value
-    						out.getType().setReal( myFusion.getValue() );
+            				// some outputs need to know when a block is done
+            				for ( final FusionOutput output : outputs )
+            					if ( output instanceof BlockFusionOutput )
+            						( (BlockFusionOutput)output ).finishBlock( min, maxBlock );
                         }
             		} 
             		catch ( NoninvertibleModelException e ) 
@@ -393,8 +1620,8 @@ A:        					for ( int i = 0; i < numImages; ++i )
             			return;
             		}
 
-                    if ( fusionImp != null )
-                    	fusionImp.hide();
+                    if ( myImp != null )
+                    	myImp.hide();
                 }
             });
         
@@ -402,206 +1629,597 @@ A:        					for ( int i = 0; i < numImages; ++i )
 	}
 
 	/**
-	 * Fuse one slice/volume (one channel)
+	 * Writes one row through a cursor
+	 * 
+	 * @param row - the values
+	 * @param width - the number of values
+	 * @param pos - the position of the first pixel of the row
+	 * @param out - the cursor
+	 */
+	protected static <T extends RealType<T>> void writeRow( final float[] row, final int width, final int[] pos, final LocalizableByDimCursor<T> out )
+	{
+		out.setPosition( pos );
+		
+		for ( int x = 0; x < width; ++x )
+		{
+			out.getType().setReal( row[ x ] );
+			
+			if ( x < width - 1 )
+				out.fwd( 0 );
+		}
+	}
+
+	/**
+	 * Fuse one slice/volume (one channel) by copying the tiles into the output at their (rounded) translation,
+	 * only correct if the tiles do not overlap. The rows are copied with System.arraycopy if the input and
+	 * output are stored in an ImagePlus of the same type, the tiles are distributed over a fixed number of threads.
 	 * 
 	 * @param output - same the type of the ImagePlus input
-	 * @param input - FloatType, because of Interpolation that needs to be done
-	 * @param transform - the transformation
+	 * @param input - the tiles
+	 * @param offset - the offset of the output image
+	 * @param transform - the transformations, only the translation is used
+	 * @param displayFusion - show the output while fusing
 	 */
 	protected static <T extends RealType<T>> void fuseBlockNoOverlap( final Image<T> output, final ArrayList< ? extends ImageInterpolation< ? extends RealType< ? > > > input, final float[] offset, 
 			final ArrayList< InvertibleBoundable > transform, final boolean displayFusion )
 	{
 		final int numDimensions = output.getNumDimensions();
 		final int numImages = input.size();
+		
+		// if possible we copy directly between the arrays
+		final Object[] outPlanes = RowAccess.getPlanes( output );
+		
+		// only the first thread does preview and update the status bar
+		final ImagePlus fusionImp = displayFusion ? showFusion( output ) : null;
+		
+		final AtomicInteger ai = new AtomicInteger( 0 );
+		final AtomicInteger threadNumber = new AtomicInteger( 0 );
+		final AtomicInteger finished = new AtomicInteger( 0 );
+		final Thread[] threads = SimpleMultiThreading.newThreads( Math.min( numImages, newThreads().length ) );
+		
+		for ( int ithread = 0; ithread < threads.length; ++ithread )
+			threads[ ithread ] = new Thread( new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					final int myNumber = threadNumber.getAndIncrement();
+					final float[] tmp = new float[ numDimensions ];
+					final int[] shift = new int[ numDimensions ];
+					long lastDraw = 0;
+					
+					for ( int i = ai.getAndIncrement(); i < numImages; i = ai.getAndIncrement() )
+					{
+						final Image< ? extends RealType< ? > > image = input.get( i ).getImage();
+						
+						// where the pixel 0 of the tile goes in the output
+						for ( int d = 0; d < numDimensions; ++d )
+							tmp[ d ] = 0;
+						
+						transform.get( i ).applyInPlace( tmp );
+						
+						for ( int d = 0; d < numDimensions; ++d )
+							shift[ d ] = (int)Math.floor( Math.round( tmp[ d ] ) - offset[ d ] );
+						
+						final Object[] inPlanes = outPlanes == null ? null : RowAccess.getPlanes( image );
+						
+						final FlatFieldCorrection correction = input.get( i ).getCorrection();
+						
+						if ( inPlanes != null )
+							copyRows( inPlanes, image.getDimensions(), outPlanes, output.getDimensions(), shift, correction );
+						else
+							copyPixels( image, output, shift, correction );
+						
+						final int n = finished.incrementAndGet();
+						
+						if ( myNumber == 0 )
+						{
+							lastDraw = drawFusion( lastDraw, fusionImp );
+							IJ.showProgress( (double)n / (double)numImages );
+						}
+					}
+				}
+			});
+		
+		SimpleMultiThreading.startAndJoin( threads );
+		
+		if ( fusionImp != null )
+			fusionImp.hide();
+	}
+	
+	/**
+	 * Copies all rows of a tile into the output, pixels outside of the output are skipped
+	 * 
+	 * @param inPlanes - the planes of the tile (byte[], short[] or float[])
+	 * @param inSize - the size of the tile
+	 * @param outPlanes - the planes of the output
+	 * @param outSize - the size of the output
+	 * @param shift - the position of the first pixel of the tile in the output
+	 * @param correction - the flat-field correction of the tile, can be null
+	 */
+	protected static void copyRows( final Object[] inPlanes, final int[] inSize, final Object[] outPlanes, final int[] outSize, final int[] shift,
+			final FlatFieldCorrection correction )
+	{
+		final int inDepth = inSize.length == 3 ? inSize[ 2 ] : 1;
+		final int outDepth = outSize.length == 3 ? outSize[ 2 ] : 1;
+		final int shiftZ = shift.length == 3 ? shift[ 2 ] : 0;
+		
+		// the part of each row that is inside the output
+		final int x0 = Math.max( 0, -shift[ 0 ] );
+		final int x1 = Math.min( inSize[ 0 ], outSize[ 0 ] - shift[ 0 ] );
+		final int length = x1 - x0;
+		
+		if ( length <= 0 )
+			return;
+		
+		final float[] row = new float[ length ];
+		
+		for ( int z = Math.max( 0, -shiftZ ); z < Math.min( inDepth, outDepth - shiftZ ); ++z )
+		{
+			final Object in = inPlanes[ z ];
+			final Object out = outPlanes[ z + shiftZ ];
+			final boolean sameType = in.getClass() == out.getClass() && correction == null;
+			
+			for ( int y = Math.max( 0, -shift[ 1 ] ); y < Math.min( inSize[ 1 ], outSize[ 1 ] - shift[ 1 ] ); ++y )
+			{
+				final int inIndex = y * inSize[ 0 ] + x0;
+				final int outIndex = ( y + shift[ 1 ] ) * outSize[ 0 ] + x0 + shift[ 0 ];
 				
-		// run multithreaded
-		final AtomicInteger ai = new AtomicInteger(0);					
-        final Thread[] threads = SimpleMultiThreading.newThreads( numImages );
-        
-        for (int ithread = 0; ithread < threads.length; ++ithread)
-            threads[ithread] = new Thread( new Runnable()
-            {
-                @Override
-                public void run()
-                {
-                	// Thread ID
-                	final int myImage = ai.getAndIncrement();
-                	
-                	// only the first thread does preview and update the status bar
-                	// this requires no synchronized stuff
-            		long lastDraw = 0;
-            		ImagePlus fusionImp = null;
-
-                	if ( displayFusion && myImage == 0 )
-                	{
-                		try
-            			{
-            				fusionImp = ((ImagePlusContainer<?, ?>) output.getContainer()).getImagePlus();
-            				fusionImp.setTitle( "fusing..." );
-            				fusionImp.show();
-            			}
-            			catch ( ImgLibException e )
-            			{
-            				IJ.log( "Output image has no ImageJ type: " + e );
-            			}                		
-                	}
-
-                	final Image< ? extends RealType<?> > image = input.get( myImage ).getImage();
-                	final int[] translation = new int[ numDimensions ];
-                	
-                	final InvertibleBoundable t = transform.get( myImage );
-            		final float[] tmp = new float[ numDimensions ];
-            		t.applyInPlace( tmp );
- 
-            		for ( int d = 0; d < numDimensions; ++d )
-            			translation[ d ] = Math.round( tmp[ d ] );
-
-            		final LocalizableCursor< ? extends RealType<?> > cursor = image.createLocalizableCursor();
-            		final LocalizableByDimCursor< ? extends RealType<?> > randomAccess = output.createLocalizableByDimCursor();
-            		final int[] pos = new int[ numDimensions ];
-            		
-            		while ( cursor.hasNext() )
-            		{
-            			cursor.fwd();
-            			cursor.getPosition( pos );
-            			
-        				// just thread 0
-        				if ( myImage == 0 )
-        				{
-        					// just every 10000'th pixel
-        					final int j = cursor.getArrayIndex(); 
-        					if ( j % 10000 == 0 )
-        					{
-                				lastDraw = drawFusion( lastDraw, fusionImp );
-        						IJ.showProgress( (double)j / (double)image.getNumPixels() );
-        					}
-        				}
-          				
-                		for ( int d = 0; d < numDimensions; ++d )
-                		{
-                			pos[ d ] += translation[ d ];
-                			pos[ d ] -= offset[ d ];
-                		}
-                		
-                		randomAccess.setPosition( pos );
-                		randomAccess.getType().setReal( cursor.getType().getRealFloat() );
-            		}
-            		
-    				if ( fusionImp != null )
-    					fusionImp.hide();
-                 }
-            });
-        
-        SimpleMultiThreading.startAndJoin( threads );        
+				if ( sameType )
+				{
+					System.arraycopy( in, inIndex, out, outIndex, length );
+				}
+				else
+				{
+					RowAccess.read( in, inIndex, row, 0, length );
+					
+					if ( correction != null )
+						correction.correctRow( row, 0, inIndex, length );
+					
+					RowAccess.write( row, 0, out, outIndex, length );
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Copies a tile pixel by pixel (if one of the images is not stored in an ImagePlus), pixels outside of the output are skipped
+	 * 
+	 * @param image - the tile
+	 * @param output - the output
+	 * @param shift - the position of the first pixel of the tile in the output
+	 * @param correction - the flat-field correction of the tile, can be null
+	 */
+	protected static <T extends RealType<T>> void copyPixels( final Image< ? extends RealType< ? > > image, final Image< T > output, final int[] shift,
+			final FlatFieldCorrection correction )
+	{
+		final int numDimensions = output.getNumDimensions();
+		final int[] outSize = output.getDimensions();
+		
+		final LocalizableCursor< ? extends RealType< ? > > cursor = image.createLocalizableCursor();
+		final LocalizableByDimCursor< T > randomAccess = output.createLocalizableByDimCursor();
+		final int[] pos = new int[ numDimensions ];
+		final int width = image.getDimension( 0 );
+		
+A:		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+			cursor.getPosition( pos );
+			
+			float value = cursor.getType().getRealFloat();
+			
+			if ( correction != null )
+				value = correction.correct( value, pos[ 1 ] * width + pos[ 0 ] );
+			
+			for ( int d = 0; d < numDimensions; ++d )
+			{
+				pos[ d ] += shift[ d ];
+				
+				if ( pos[ d ] < 0 || pos[ d ] >= outSize[ d ] )
+					continue A;
+			}
+			
+			randomAccess.setPosition( pos );
+			randomAccess.getType().setReal( value );
+		}
+		
+		cursor.close();
+		randomAccess.close();
+	}
+	
+	/**
+	 * Tests if the tiles can simply be copied into the output, i.e. all models are translations by whole pixels
+	 * (otherwise the interpolation decides which pixels are at the border) and no two tiles intersect in the output
+	 * 
+	 * @param images - the input images
+	 * @param models - the transformations
+	 * @param dimensionality - 2 or 3
+	 * @return - true if {@link #fuseBlockNoOverlap(Image, ArrayList, float[], ArrayList, boolean)} gives the same result as any fusion
+	 */
+	public static boolean isNonOverlapping( final ArrayList< ImagePlus > images, final ArrayList< InvertibleBoundable > models, final int dimensionality )
+	{
+		if ( !TranslationFusion.isTranslation( models ) )
+			return false;
+		
+		final int numImages = images.size();
+		final int[][] imgSizes = getImageSizes( images, dimensionality );
+		final int[][] min = new int[ numImages ][ dimensionality ];
+		final float[] tmp = new float[ dimensionality ];
+		
+		for ( int i = 0; i < numImages; ++i )
+		{
+			for ( int d = 0; d < dimensionality; ++d )
+				tmp[ d ] = 0;
+			
+			models.get( i ).applyInPlace( tmp );
+			
+			for ( int d = 0; d < dimensionality; ++d )
+			{
+				min[ i ][ d ] = Math.round( tmp[ d ] );
+				
+				if ( min[ i ][ d ] != tmp[ d ] )
+					return false;
+			}
+		}
+		
+		for ( int i = 0; i < numImages; ++i )
+A:			for ( int j = i + 1; j < numImages; ++j )
+			{
+				for ( int d = 0; d < dimensionality; ++d )
+					if ( min[ i ][ d ] + imgSizes[ i ][ d ] <= min[ j ][ d ] || min[ j ][ d ] + imgSizes[ j ][ d ] <= min[ i ][ d ] )
+						continue A;
+				
+				return false;
+			}
+		
+		return true;
+	}
+	
+	/**
+	 * @return - the ImagePlus of the output, shown as "fusing...", or null if it is not stored in an ImagePlus
+	 */
+	protected static ImagePlus showFusion( final Image< ? > output )
+	{
+		try
+		{
+			final ImagePlus fusionImp = ((ImagePlusContainer<?, ?>) output.getContainer()).getImagePlus();
+			fusionImp.setTitle( "fusing..." );
+			fusionImp.show();
+			
+			return fusionImp;
+		}
+		catch ( ImgLibException e )
+		{
+			IJ.log( "Output image has no ImageJ type: " + e );
+			return null;
+		}
 	}
 
 	/**
-	 * Fuse one slice/volume (one channel)
+	 * Fuse one slice/volume (one channel) and write it slice by slice to disk. All threads fuse the blocks of the
+	 * next slices while this thread writes the ones that are finished, at most {@link #slicesInFlight} slices are
+	 * kept in memory.
 	 * 
 	 * @param outputSlice - same the type of the ImagePlus input, just one slice which will be written to the output directory
 	 * @param input - FloatType, because of Interpolation that needs to be done
 	 * @param transform - the transformation
+	 * @param projection - every written slice is added to this projection, can be null
 	 */
 	protected static <T extends RealType<T>> void writeBlock( final Image<T> outputSlice, final int numSlices, final int t, final int numTimePoints, final int c, final int numChannels, 
 			final ArrayList< ? extends ImageInterpolation< ? extends RealType< ? > > > input, final float[] offset, 
-			final ArrayList< InvertibleBoundable > transform, final PixelFusion fusion, final String outputDirectory )
+			final ArrayList< InvertibleBoundable > transform, final PixelFusion fusion, final String outputDirectory, final Projection projection )
 	{
-		final int numImages = input.size();
 		final int numDimensions = offset.length;
-
-		// the maximal dimensions of each image
-		final int[][] max = new int[ numImages ][ numDimensions ];
-		for ( int i = 0; i < numImages; ++i )
-			for ( int d = 0; d < numDimensions; ++d )
-				max[ i ][ d ] = input.get( i ).getImage().getDimension( d ) - 1; 
 		
-		final LocalizableCursor<T> out = outputSlice.createLocalizableCursor();
-		final ArrayList<Interpolator<? extends RealType<?>>> in = new ArrayList<Interpolator<? extends RealType<?>>>();
+		// which tiles contribute to which block of the output image
+		final int[] size = new int[ numDimensions ];
+		size[ 0 ] = outputSlice.getDimension( 0 );
+		size[ 1 ] = outputSlice.getDimension( 1 );
+		if ( numDimensions == 3 )
+			size[ 2 ] = numSlices;
 		
-		for ( int i = 0; i < numImages; ++i )
-			in.add( input.get( i ).createInterpolator() );
+		final TileIndex index = new TileIndex( size, offset, input, transform );
+		final FusionPlanner planner = new FusionPlanner( index );
+		final int blockWidth = Math.min( size[ 0 ], index.getBlockSize()[ 0 ] );
+		
+		// the slices that can be in memory at the same time, each one is reused once it is written
+		final int numImages = Math.max( 1, Math.min( slicesInFlight, numSlices ) );
+		final ArrayList< Image< T > > images = new ArrayList< Image< T > >();
+		final ArrayBlockingQueue< Image< T > > free = new ArrayBlockingQueue< Image< T > >( numImages );
+		
+		images.add( outputSlice );
+		for ( int i = 1; i < numImages; ++i )
+			images.add( outputSlice.createNewImage() );
+		
+		free.addAll( images );
+		
+		// the slices that are fused and wait to be written
+		final ArrayBlockingQueue< FusedSlice< T > > fused = new ArrayBlockingQueue< FusedSlice< T > >( numImages );
+		
+		// hands out the blocks of one slice after the other, so all threads work even if only one slice fits into memory
+		final SliceBlocks< T > sliceBlocks = new SliceBlocks< T >( free, numSlices, index.getNumBlocks() );
+		final AtomicInteger finished = new AtomicInteger( 0 );
+		final AtomicBoolean failed = new AtomicBoolean( false );
+		
+		final Thread[] threads = SimpleMultiThreading.newThreads();
+		
+		for (int ithread = 0; ithread < threads.length; ++ithread)
+			threads[ithread] = new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					// the scratch data of this thread
+					final RowFusion rowFusion = new RowFusion( input, transform, offset, fusion.copy() );
+					final float[] row = new float[ blockWidth ];
+					final int[] block = new int[ 1 ];
+					
+					try
+					{
+						// fuse one block after the other until all slices are done, the thread that finishes a slice queues it for writing
+						FusedSlice< T > fusedSlice;
+						
+						while ( !failed.get() && ( fusedSlice = sliceBlocks.next( block ) ) != null )
+						{
+							fuseSliceBlock( fusedSlice.image, fusedSlice.slice, block[ 0 ], index, planner, rowFusion, row );
+							
+							if ( fusedSlice.remainingBlocks.decrementAndGet() == 0 )
+								fused.put( fusedSlice );
+						}
+					}
+					catch ( NoninvertibleModelException e ) 
+					{
+						IJ.log( "Cannot invert model, qutting." );
+						failed.set( true );
+					}
+					catch ( InterruptedException e ) 
+					{
+						failed.set( true );
+					}
+					finally
+					{
+						finished.incrementAndGet();
+					}
+				}
+			});
 		
-		final float[][] tmp = new float[ numImages ][ numDimensions ];
-		final PixelFusion myFusion = fusion.copy();
+		for ( final Thread thread : threads )
+			thread.start();
 		
+		// write the slices as they come in
 		try 
 		{
-			final int sliceSize = outputSlice.getNumPixels();
+			int written = 0;
 			
-			for ( int slice = 0; slice < numSlices; ++slice )
+			while ( written < numSlices )
 			{
+				final FusedSlice< T > fusedSlice = fused.poll( 100, TimeUnit.MILLISECONDS );
+				
+				if ( fusedSlice == null )
+				{
+					// all threads are done (or one failed, then the others might wait for a free slice) and there is nothing left to write
+					if ( ( finished.get() == threads.length || failed.get() ) && fused.isEmpty() )
+						break;
+					else
+						continue;
+				}
+				
 				IJ.showStatus("Fusing time point: " + t + " of " + numTimePoints + ", " +
-						"channel: " + c + " of " + numChannels + ", slice: " + (slice + 1) + " of " +
+						"channel: " + c + " of " + numChannels + ", slice: " + (fusedSlice.slice + 1) + " of " +
 						numSlices + "...");
-				out.reset();
 
-				IJ.showProgress(0);
+				IJ.showProgress( (double)written / (double)numSlices );
+				
+				final ImagePlus outImp = ((ImagePlusContainer<?,?>)fusedSlice.image.getContainer()).getImagePlus();
+				
+				if ( projection != null )
+					projection.addPlane( outImp.getStack().getPixels( 1 ) );
+				
+				final File file = new File( outputDirectory, "img_t" + lz( t, numTimePoints ) + "_z" + lz( fusedSlice.slice+1, numSlices ) + "_c" + lz( c, numChannels ) );
 				
-				// fill all pixels of the current slice
-				while ( out.hasNext() )
+				if ( writeTiledTiff )
 				{
-					out.fwd();
-  					
-					// just every 10000'th pixel
-					final long j = out.getArrayIndex(); 
-					if ( j % 10000 == 0 )
-						IJ.showProgress( (double)( j + ( slice * sliceSize ) ) / (double)( numSlices * sliceSize ) );
+					// same file names as the plain TIFFs, so the layout of the directory does not depend on the format
+					final BigTiffWriter writer = new BigTiffWriter( file, outputSlice.createType() );
 					
-					// get the current position in the output image
-					for ( int d = 0; d < 2; ++d )
+					try
 					{
-						final float value = out.getPosition( d ) + offset[ d ];
-						
-						for ( int i = 0; i < numImages; ++i )
-							tmp[ i ][ d ] = value;
+						writer.writePlane( outImp.getStack().getPixels( 1 ), outImp.getWidth(), outImp.getHeight() );
 					}
-					
-					// if there is a third dimension, use the slice index
-					if ( numDimensions == 3 )
+					finally
 					{
-						final float value = slice + offset[ 2 ];
-						
-						for ( int i = 0; i < numImages; ++i )
-							tmp[ i ][ 2 ] = value;						
-					}
-					
-					// transform and compute output value
-					myFusion.clear();
-					
-					// loop over all images for this output location
-A:		        	for ( int i = 0; i < numImages; ++i )
-		        	{
-		        		transform.get( i ).applyInverseInPlace( tmp[ i ] );
-		            	
-		        		// test if inside
-						for ( int d = 0; d < numDimensions; ++d )
-							if ( tmp[ i ][ d ] < 0 || tmp[ i ][ d ] > max[ i ][ d ] )
-								continue A;
-						
-						in.get( i ).setPosition( tmp[ i ] );			
-						myFusion.addValue( in.get( i ).getType().getRealFloat(), i, tmp[ i ] );
+						writer.close();
 					}
-					
-					// set value
-					out.getType().setReal( myFusion.getValue() );
+				}
+				else
+				{
+					final FileSaver fs = new FileSaver( outImp );
+					fs.saveAsTiff( file.getAbsolutePath() );
 				}
 				
-				// write the slice
-				final ImagePlus outImp = ((ImagePlusContainer<?,?>)outputSlice.getContainer()).getImagePlus();
-				final FileSaver fs = new FileSaver( outImp );
-				fs.saveAsTiff( new File( outputDirectory, "img_t" + lz( t, numTimePoints ) + "_z" + lz( slice+1, numSlices ) + "_c" + lz( c, numChannels ) ).getAbsolutePath() );
+				++written;
+				free.put( fusedSlice.image );
 			}
 		} 
-		catch ( NoninvertibleModelException e ) 
-		{
-			IJ.log( "Cannot invert model, qutting." );
-			return;
-		} 
 		catch ( ImgLibException e ) 
 		{
 			IJ.log( "Output image has no ImageJ type: " + e );
-			return;
 		}
+		catch ( InterruptedException e ) 
+		{
+			IJ.log( "Writing the fused slices was interrupted: " + e );
+		}
+		catch ( IOException e ) 
+		{
+			IJ.log( "Cannot write the fused slices: " + e );
+		}
+		finally
+		{
+			// threads might still wait for a free slice
+			failed.set( true );
+			
+			for ( final Thread thread : threads )
+				thread.interrupt();
+			
+			try
+			{
+				for ( final Thread thread : threads )
+					thread.join();
+			}
+			catch ( InterruptedException e ) {}
+			
+			// the first slice is closed by the caller
+			for ( int i = 1; i < images.size(); ++i )
+				images.get( i ).close();
+		}
+	}
+	
+	/**
+	 * Fuses the part of one z-slice that is inside a block into an image of the size of one slice, all pixels of
+	 * the block are written
+	 * 
+	 * @param image - the 2d image
+	 * @param slice - which slice, 0 if the output is 2d
+	 * @param block - which block of the index
+	 * @param index - the index of the output image
+	 * @param planner - the planner for the index
+	 * @param rowFusion - the fusion of this thread
+	 * @param row - temporary array of the width of a block
+	 * @throws NoninvertibleModelException
+	 */
+	protected static <T extends RealType<T>> void fuseSliceBlock( final Image<T> image, final int slice, final int block, final TileIndex index, 
+			final FusionPlanner planner, final RowFusion rowFusion, final float[] row ) throws NoninvertibleModelException
+	{
+		final int numDimensions = index.numDimensions;
+		final int width = image.getDimension( 0 );
+		
+		final int[] min = new int[ numDimensions ];
+		final int[] max = new int[ numDimensions ];
+		final int[] pos = new int[ numDimensions ];
+		final int[] slicePos = new int[ 2 ];
+		
+		index.getBlockBounds( block, min, max );
+		
+		// if there is a third dimension, only the blocks containing the slice are relevant
+		if ( numDimensions == 3 )
+		{
+			if ( slice < min[ 2 ] || slice > max[ 2 ] )
+				return;
+			
+			min[ 2 ] = max[ 2 ] = slice;
+		}
+		
+		// if possible we write directly into the array
+		final Object[] planes = RowAccess.getPlanes( image );
+		final LocalizableByDimCursor<T> out = planes == null ? image.createLocalizableByDimCursor() : null;
+		
+		// only regions where tiles overlap are fused, the others are copied
+		for ( final FusionPlanner.Region region : planner.plan( min, max, index.getTiles( block ) ) )
+		{
+			final int length = region.max[ 0 ] - region.min[ 0 ] + 1;
+			System.arraycopy( region.min, 0, pos, 0, numDimensions );
+			
+			// the slice is reused, so also the empty regions have to be written
+			if ( region.tiles.length == 0 )
+				Arrays.fill( row, 0, length, 0 );
+			
+			do
+			{
+				if ( region.tiles.length > 0 )
+					rowFusion.fuseRow( pos, length, region.tiles, row );
+				
+				if ( planes != null )
+				{
+					RowAccess.write( row, 0, planes[ 0 ], pos[ 1 ] * width + pos[ 0 ], length );
+				}
+				else
+				{
+					slicePos[ 0 ] = pos[ 0 ];
+					slicePos[ 1 ] = pos[ 1 ];
+					writeRow( row, length, slicePos, out );
+				}
+			}
+			while ( TileIndex.next( pos, region.min, region.max, 1 ) );
+		}
+		
+		if ( out != null )
+			out.close();
+	}
+	
+	/**
+	 * A slice that is fused and waits to be written
+	 */
+	protected static class FusedSlice< T extends RealType< T > >
+	{
+		final int slice;
+		final Image< T > image;
+		
+		// the blocks that are not fused yet, the thread that fuses the last one queues the slice for writing
+		final AtomicInteger remainingBlocks;
+		
+		// the next block that is handed out (guarded by the SliceBlocks)
+		int nextBlock = 0;
+		
+		public FusedSlice( final int slice, final Image< T > image, final int numBlocks )
+		{
+			this.slice = slice;
+			this.image = image;
+			this.remainingBlocks = new AtomicInteger( numBlocks );
+		}
+	}
+	
+	/**
+	 * Hands out the blocks of one slice after the other to the fusion threads. A new slice is started once all blocks of
+	 * the current one are handed out, it waits until one of the images is free again (i.e. written to disk).
+	 */
+	protected static class SliceBlocks< T extends RealType< T > >
+	{
+		final ArrayBlockingQueue< Image< T > > free;
+		final int numSlices, numBlocks;
+		
+		FusedSlice< T > current = null;
+		int nextSlice = 0;
+		
+		public SliceBlocks( final ArrayBlockingQueue< Image< T > > free, final int numSlices, final int numBlocks )
+		{
+			this.free = free;
+			this.numSlices = numSlices;
+			this.numBlocks = numBlocks;
+		}
+		
+		/**
+		 * @param block - the block that is handed out is stored in block[ 0 ]
+		 * @return - the slice the block belongs to, or null if all blocks of all slices are handed out
+		 * @throws InterruptedException - if the thread is interrupted while waiting for a free image
+		 */
+		public synchronized FusedSlice< T > next( final int[] block ) throws InterruptedException
+		{
+			while ( current == null || current.nextBlock == numBlocks )
+			{
+				if ( nextSlice == numSlices || numBlocks == 0 )
+					return null;
+				
+				current = new FusedSlice< T >( nextSlice++, free.take(), numBlocks );
+			}
+			
+			block[ 0 ] = current.nextBlock++;
+			
+			return current;
+		}
+	}
+
+	/**
+	 * @param type - the type
+	 * @return - 255 for {@link UnsignedByteType}, 65535 for {@link UnsignedShortType}, otherwise 0
+	 */
+	protected static int getMaxIntegerValue( final RealType< ? > type )
+	{
+		if ( type instanceof UnsignedByteType )
+			return 255;
+		else if ( type instanceof UnsignedShortType )
+			return 65535;
+		else
+			return 0;
 	}
 
 	private static final String lz( final int num, final int max )
@@ -632,6 +2250,16 @@ A:		        	for ( int i = 0; i < numImages; ++i )
 	 * @param dimensionality - which dimensionality (2 or 3)
 	 */
 	public static void estimateBounds( final float[] offset, final int[] size, final List<ImagePlus> images, final ArrayList<InvertibleBoundable> models, final int dimensionality )
+	{
+		estimateBounds( offset, size, getImageSizes( images, dimensionality ), models, dimensionality );
+	}
+	
+	/**
+	 * @param images - all input images
+	 * @param dimensionality - 2 or 3
+	 * @return - the dimensions of one channel and timepoint of all input images imgSizes[ image ][ x, y, (z) ]
+	 */
+	public static int[][] getImageSizes( final List<ImagePlus> images, final int dimensionality )
 	{
 		final int[][] imgSizes = new int[ images.size() ][ dimensionality ];
 		
@@ -643,7 +2271,7 @@ A:		        	for ( int i = 0; i < numImages; ++i )
 				imgSizes[ i ][ 2 ] = images.get( i ).getNSlices();
 		}
 		
-		estimateBounds( offset, size, imgSizes, models, dimensionality );
+		return imgSizes;
 	}
 	
 	/**
@@ -756,7 +2384,7 @@ A:		        	for ( int i = 0; i < numImages; ++i )
 	 *          potentially redraw
 	 * @return The time of the most recent draw of the provided fusion.
 	 */
-	private static long drawFusion( final long lastDraw, final ImagePlus fusion )
+	protected static long drawFusion( final long lastDraw, final ImagePlus fusion )
 	{
 		final long t = System.currentTimeMillis();
 		
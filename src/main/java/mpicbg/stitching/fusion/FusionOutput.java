@@ -0,0 +1,25 @@
+package mpicbg.stitching.fusion;
+
+/**
+ * Where the fusion puts its result. The fusion computes the output row by row, an implementation can store
+ * the rows in an {@link mpicbg.imglib.image.Image}, in sparse cells, on disk, ...
+ * Different threads write different rows at the same time, so implementations have to be thread-safe as
+ * long as the pixels written do not overlap.
+ */
+public interface FusionOutput
+{
+	/**
+	 * @return - the size of the output
+	 */
+	public int[] getDimensions();
+
+	/**
+	 * Stores a row of fused pixels
+	 *
+	 * @param pos - the position of the first pixel of the row in output coordinates
+	 * @param row - the fused values
+	 * @param offset - the first index in row
+	 * @param length - the number of pixels
+	 */
+	public void writeRow( int[] pos, float[] row, int offset, int length );
+}
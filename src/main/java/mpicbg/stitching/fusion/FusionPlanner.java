@@ -0,0 +1,165 @@
+package mpicbg.stitching.fusion;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Splits a block of the output image into rectangular regions that are covered by the same set of tiles.
+ * The edges of all tile bounding boxes inside the block define a grid, each cell of the grid knows which
+ * tiles cover it and neighboring cells in x with the same tiles are merged. Regions covered by only one
+ * tile do not need any {@link PixelFusion}, the tile can simply be copied (or interpolated), whatever
+ * fusion method is selected. Only the regions where tiles overlap are actually fused.
+ */
+public class FusionPlanner
+{
+	/**
+	 * A rectangular part of a block and the tiles that cover it
+	 */
+	public static class Region
+	{
+		/**
+		 * The first and last pixel in output coordinates (inclusive)
+		 */
+		public final int[] min, max;
+
+		/**
+		 * The ids of all tiles that cover this region, can be empty
+		 */
+		public final int[] tiles;
+
+		public Region( final int[] min, final int[] max, final int[] tiles )
+		{
+			this.min = min;
+			this.max = max;
+			this.tiles = tiles;
+		}
+	}
+
+	// the bounding box of each tile in output coordinates (inclusive)
+	final int[][] tileMin, tileMax;
+
+	/**
+	 * Uses the (conservative) bounding boxes of the {@link TileIndex}
+	 *
+	 * @param index - the index of the output image
+	 */
+	public FusionPlanner( final TileIndex index )
+	{
+		this.tileMin = index.tileMin;
+		this.tileMax = index.tileMax;
+	}
+
+	/**
+	 * @param tileMin - the first pixel of each tile in output coordinates tileMin[ tile ][ dim ]
+	 * @param tileMax - the last pixel of each tile in output coordinates (inclusive), tileMax[ tile ][ dim ]
+	 */
+	public FusionPlanner( final int[][] tileMin, final int[][] tileMax )
+	{
+		this.tileMin = tileMin;
+		this.tileMax = tileMax;
+	}
+
+	/**
+	 * Splits a block into regions. All pixels of the block are part of exactly one region,
+	 * including those that are not covered by any tile (the region has no tiles then).
+	 *
+	 * @param min - the first pixel of the block (inclusive)
+	 * @param max - the last pixel of the block (inclusive)
+	 * @param tiles - the ids of all tiles that might cover the block
+	 * @return - the regions in raster order (x fastest)
+	 */
+	public ArrayList< Region > plan( final int[] min, final int[] max, final int[] tiles )
+	{
+		final int n = min.length;
+
+		// the edges of the cells in each dimension, cell j is [ edges[ j ], edges[ j + 1 ] - 1 ]
+		final int[][] edges = new int[ n ][];
+		final int[] cellMax = new int[ n ];
+
+		for ( int d = 0; d < n; ++d )
+		{
+			final int[] e = new int[ tiles.length * 2 + 2 ];
+			int k = 0;
+
+			e[ k++ ] = min[ d ];
+			e[ k++ ] = max[ d ] + 1;
+
+			for ( final int t : tiles )
+			{
+				if ( tileMin[ t ][ d ] > min[ d ] && tileMin[ t ][ d ] <= max[ d ] )
+					e[ k++ ] = tileMin[ t ][ d ];
+
+				if ( tileMax[ t ][ d ] >= min[ d ] && tileMax[ t ][ d ] < max[ d ] )
+					e[ k++ ] = tileMax[ t ][ d ] + 1;
+			}
+
+			Arrays.sort( e, 0, k );
+
+			// remove duplicates
+			int u = 1;
+			for ( int i = 1; i < k; ++i )
+				if ( e[ i ] != e[ u - 1 ] )
+					e[ u++ ] = e[ i ];
+
+			edges[ d ] = Arrays.copyOf( e, u );
+			cellMax[ d ] = u - 2;
+		}
+
+		final ArrayList< Region > regions = new ArrayList< Region >();
+
+		final int[] cell = new int[ n ];
+		final int[] cellMin = new int[ n ];
+		final int[] covering = new int[ tiles.length ];
+		Region last = null;
+
+		do
+		{
+			// which tiles cover this cell
+			int k = 0;
+
+A:			for ( final int t : tiles )
+			{
+				for ( int d = 0; d < n; ++d )
+					if ( tileMin[ t ][ d ] > edges[ d ][ cell[ d ] ] || tileMax[ t ][ d ] < edges[ d ][ cell[ d ] + 1 ] - 1 )
+						continue A;
+
+				covering[ k++ ] = t;
+			}
+
+			// the same tiles as the cell to the left, just extend it
+			if ( last != null && cell[ 0 ] > 0 && equals( last.tiles, covering, k ) )
+			{
+				last.max[ 0 ] = edges[ 0 ][ cell[ 0 ] + 1 ] - 1;
+			}
+			else
+			{
+				final int[] rMin = new int[ n ];
+				final int[] rMax = new int[ n ];
+
+				for ( int d = 0; d < n; ++d )
+				{
+					rMin[ d ] = edges[ d ][ cell[ d ] ];
+					rMax[ d ] = edges[ d ][ cell[ d ] + 1 ] - 1;
+				}
+
+				last = new Region( rMin, rMax, Arrays.copyOf( covering, k ) );
+				regions.add( last );
+			}
+		}
+		while ( TileIndex.next( cell, cellMin, cellMax, 0 ) );
+
+		return regions;
+	}
+
+	protected static boolean equals( final int[] a, final int[] b, final int length )
+	{
+		if ( a.length != length )
+			return false;
+
+		for ( int i = 0; i < length; ++i )
+			if ( a[ i ] != b[ i ] )
+				return false;
+
+		return true;
+	}
+}
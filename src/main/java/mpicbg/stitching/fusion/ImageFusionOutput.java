@@ -0,0 +1,62 @@
+package mpicbg.stitching.fusion;
+
+import mpicbg.imglib.cursor.LocalizableByDimCursor;
+import mpicbg.imglib.image.Image;
+import mpicbg.imglib.type.numeric.RealType;
+
+/**
+ * Stores the fusion in an {@link Image}. If it is stored in an ImagePlus the rows are written directly
+ * into the arrays, otherwise every thread uses its own cursor.
+ */
+public class ImageFusionOutput< T extends RealType< T > > implements FusionOutput
+{
+	final Image< T > image;
+	final int[] size;
+	final Object[] planes;
+
+	final ThreadLocal< LocalizableByDimCursor< T > > cursors = new ThreadLocal< LocalizableByDimCursor< T > >()
+	{
+		@Override
+		protected LocalizableByDimCursor< T > initialValue() { return image.createLocalizableByDimCursor(); }
+	};
+
+	/**
+	 * @param image - the output image
+	 */
+	public ImageFusionOutput( final Image< T > image )
+	{
+		this.image = image;
+		this.size = image.getDimensions();
+		this.planes = RowAccess.getPlanes( image );
+	}
+
+	/**
+	 * @return - the output image
+	 */
+	public Image< T > getImage() { return image; }
+
+	@Override
+	public int[] getDimensions() { return size.clone(); }
+
+	@Override
+	public void writeRow( final int[] pos, final float[] row, final int offset, final int length )
+	{
+		if ( planes != null )
+		{
+			RowAccess.write( row, offset, planes[ pos.length == 3 ? pos[ 2 ] : 0 ], pos[ 1 ] * size[ 0 ] + pos[ 0 ], length );
+		}
+		else
+		{
+			final LocalizableByDimCursor< T > out = cursors.get();
+			out.setPosition( pos );
+
+			for ( int x = 0; x < length; ++x )
+			{
+				out.getType().setReal( row[ offset + x ] );
+
+				if ( x < length - 1 )
+					out.fwd( 0 );
+			}
+		}
+	}
+}
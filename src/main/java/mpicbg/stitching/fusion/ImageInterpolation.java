@@ -16,13 +16,56 @@ public class ImageInterpolation< T extends RealType< T > >
 {
 	final Image< T > image;
 	final InterpolatorFactory< T > interpolatorFactory;
+	final FlatFieldCorrection correction;
 	
 	public ImageInterpolation( final Image< T > image, final InterpolatorFactory< T > interpolatorFactory )
+	{
+		this( image, interpolatorFactory, null );
+	}
+	
+	/**
+	 * @param image - the image
+	 * @param interpolatorFactory - the interpolation
+	 * @param correction - applied to the values of the samplers, can be null
+	 */
+	public ImageInterpolation( final Image< T > image, final InterpolatorFactory< T > interpolatorFactory, final FlatFieldCorrection correction )
 	{
 		this.image = image;
 		this.interpolatorFactory = interpolatorFactory;
+		this.correction = correction;
 	}
 	
 	public Image< T > getImage() { return image; }
+	public FlatFieldCorrection getCorrection() { return correction; }
 	public Interpolator< T > createInterpolator() { return interpolatorFactory.createInterpolator( image ); }
+
+	/**
+	 * @return - a {@link RealSampler} that uses the {@link Interpolator} of this image, the correction is applied
+	 * to the interpolated value using the nearest pixel
+	 */
+	public RealSampler createSampler()
+	{
+		final Interpolator< T > interpolator = createInterpolator();
+
+		if ( correction != null )
+			return new RealSampler()
+			{
+				@Override
+				public float get( final float[] position )
+				{
+					interpolator.setPosition( position );
+					return correction.correct( interpolator.getType().getRealFloat(), position );
+				}
+			};
+
+		return new RealSampler()
+		{
+			@Override
+			public float get( final float[] position )
+			{
+				interpolator.setPosition( position );
+				return interpolator.getType().getRealFloat();
+			}
+		};
+	}
 }
@@ -0,0 +1,195 @@
+package mpicbg.stitching.fusion;
+
+import mpicbg.imglib.image.Image;
+import mpicbg.imglib.interpolation.InterpolatorFactory;
+import mpicbg.imglib.type.numeric.RealType;
+
+/**
+ * Linear interpolation that reads the pixels directly from the byte[], short[] or float[] planes of an image that
+ * is stored in an ImagePlus. The neighboring pixels are converted to float only while interpolating, so 8-bit and
+ * 16-bit tiles do not need a float copy for subpixel fusion. Outside of the image the pixels are either mirrored
+ * (like the OutOfBoundsStrategyMirrorFactory) or 0. A {@link FlatFieldCorrection} is applied to every pixel
+ * before interpolating. If the image has no ImageJ planes the samplers fall back to the {@link InterpolatorFactory}.
+ */
+public class LinearImageInterpolation< T extends RealType< T > > extends ImageInterpolation< T >
+{
+	final Object[] planes;
+	final int numDimensions, width, height, depth;
+	final boolean mirror;
+
+	/**
+	 * @param image - the image, should be backed by an ImagePlus
+	 * @param interpolatorFactory - used if the image is not backed by an ImagePlus
+	 * @param mirror - mirror the image at its borders, otherwise it is 0 outside
+	 */
+	public LinearImageInterpolation( final Image< T > image, final InterpolatorFactory< T > interpolatorFactory, final boolean mirror )
+	{
+		this( image, interpolatorFactory, mirror, null );
+	}
+
+	/**
+	 * @param image - the image, should be backed by an ImagePlus
+	 * @param interpolatorFactory - used if the image is not backed by an ImagePlus
+	 * @param mirror - mirror the image at its borders, otherwise it is 0 outside
+	 * @param correction - applied to every pixel, can be null
+	 */
+	public LinearImageInterpolation( final Image< T > image, final InterpolatorFactory< T > interpolatorFactory, final boolean mirror, final FlatFieldCorrection correction )
+	{
+		super( image, interpolatorFactory, correction );
+
+		this.planes = RowAccess.getPlanes( image );
+		this.numDimensions = image.getNumDimensions();
+		this.width = image.getDimension( 0 );
+		this.height = image.getDimension( 1 );
+		this.depth = numDimensions == 3 ? image.getDimension( 2 ) : 1;
+		this.mirror = mirror;
+	}
+
+	@Override
+	public RealSampler createSampler()
+	{
+		if ( planes == null )
+			return super.createSampler();
+
+		// there is no state, all samplers could be the same
+		return new RealSampler()
+		{
+			@Override
+			public float get( final float[] position ) { return interpolate( position ); }
+		};
+	}
+
+	/**
+	 * @param position - the position in the local coordinates of the image
+	 * @return - the linearly interpolated value
+	 */
+	public float interpolate( final float[] position )
+	{
+		final int x0 = floor( position[ 0 ] );
+		final int y0 = floor( position[ 1 ] );
+		final float fx = position[ 0 ] - x0;
+		final float fy = position[ 1 ] - y0;
+
+		if ( numDimensions == 2 )
+			return interpolate( 0, x0, y0, fx, fy );
+
+		final int z0 = floor( position[ 2 ] );
+		final float fz = position[ 2 ] - z0;
+
+		final float v0 = interpolate( z0, x0, y0, fx, fy );
+
+		if ( fz == 0 )
+			return v0;
+
+		return v0 + fz * ( interpolate( z0 + 1, x0, y0, fx, fy ) - v0 );
+	}
+
+	/**
+	 * Bilinear interpolation in one plane
+	 */
+	protected float interpolate( int z, final int x0, final int y0, final float fx, final float fy )
+	{
+		if ( z < 0 || z >= depth )
+		{
+			if ( !mirror )
+				return 0;
+
+			z = mirror( z, depth );
+		}
+
+		final Object plane = planes[ z ];
+
+		final float v00, v10, v01, v11;
+
+		if ( x0 >= 0 && y0 >= 0 && x0 < width - 1 && y0 < height - 1 )
+		{
+			// all four pixels are inside
+			final int i = y0 * width + x0;
+
+			v00 = getCorrected( plane, i );
+			v10 = getCorrected( plane, i + 1 );
+			v01 = getCorrected( plane, i + width );
+			v11 = getCorrected( plane, i + width + 1 );
+		}
+		else
+		{
+			v00 = get( plane, x0, y0 );
+			v10 = get( plane, x0 + 1, y0 );
+			v01 = get( plane, x0, y0 + 1 );
+			v11 = get( plane, x0 + 1, y0 + 1 );
+		}
+
+		final float v0 = v00 + fx * ( v10 - v00 );
+		final float v1 = v01 + fx * ( v11 - v01 );
+
+		return v0 + fy * ( v1 - v0 );
+	}
+
+	/**
+	 * @return - the value of a pixel that might be outside of the plane
+	 */
+	protected float get( final Object plane, int x, int y )
+	{
+		if ( x < 0 || y < 0 || x >= width || y >= height )
+		{
+			if ( !mirror )
+				return 0;
+
+			x = mirror( x, width );
+			y = mirror( y, height );
+		}
+
+		return getCorrected( plane, y * width + x );
+	}
+
+	/**
+	 * @return - the value of a pixel inside of the plane after the flat-field correction
+	 */
+	protected float getCorrected( final Object plane, final int index )
+	{
+		if ( correction == null )
+			return get( plane, index );
+		else
+			return correction.correct( get( plane, index ), index );
+	}
+
+	/**
+	 * @param plane - byte[], short[] or float[]
+	 * @param index - the index in the plane
+	 * @return - the value as float
+	 */
+	protected static float get( final Object plane, final int index )
+	{
+		if ( plane instanceof byte[] )
+			return ((byte[])plane)[ index ] & 0xff;
+		else if ( plane instanceof short[] )
+			return ((short[])plane)[ index ] & 0xffff;
+		else
+			return ((float[])plane)[ index ];
+	}
+
+	/**
+	 * Mirrors a position at the first and the last pixel, -1 becomes 1 and size becomes size - 2
+	 */
+	protected static int mirror( final int position, final int size )
+	{
+		if ( size == 1 )
+			return 0;
+
+		final int period = 2 * size - 2;
+
+		int p = Math.abs( position ) % period;
+
+		if ( p >= size )
+			p = period - p;
+
+		return p;
+	}
+
+	protected static int floor( final float value )
+	{
+		final int i = (int)value;
+
+		return value < i ? i - 1 : i;
+	}
+}
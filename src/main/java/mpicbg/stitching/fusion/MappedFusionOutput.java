@@ -0,0 +1,234 @@
+package mpicbg.stitching.fusion;
+
+import ij.ImagePlus;
+import ij.io.FileInfo;
+import ij.plugin.FileInfoVirtualStack;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import mpicbg.imglib.type.numeric.RealType;
+import mpicbg.imglib.type.numeric.integer.UnsignedByteType;
+import mpicbg.imglib.type.numeric.integer.UnsignedShortType;
+
+/**
+ * Stores the fusion in a raw file (8-bit, 16-bit or 32-bit float, big-endian, plane after plane) that is mapped
+ * into memory plane by plane. The data lives in the page cache of the operating system and not on the Java heap,
+ * so the output can be much larger than the heap. The result can be opened as raw data or as a virtual ImagePlus.
+ */
+public class MappedFusionOutput implements FusionOutput
+{
+	final File file;
+	final int[] size;
+	final int numPlanes, bytesPerPixel, fileType;
+	final long planeBytes;
+
+	final RandomAccessFile raf;
+	final FileChannel channel;
+
+	// the planes are mapped when they are used for the first time
+	final AtomicReferenceArray< MappedByteBuffer > planes;
+
+	/**
+	 * Creates the file, an existing file will be overwritten
+	 *
+	 * @param file - the raw file
+	 * @param size - the size of the output
+	 * @param type - the type of the pixels, {@link UnsignedByteType}, {@link UnsignedShortType} or float
+	 * @throws IOException
+	 */
+	public MappedFusionOutput( final File file, final int[] size, final RealType< ? > type ) throws IOException
+	{
+		this( file, size, type, true );
+	}
+
+	/**
+	 * Opens an existing file to change parts of it, e.g. to fuse moved tiles again with {@link Fusion#refuse}
+	 *
+	 * @param file - the raw file written by a MappedFusionOutput
+	 * @param size - the size of the output, has to be the size the file was created with
+	 * @param type - the type of the pixels, has to be the type the file was created with
+	 * @return - the output, all pixels keep their values
+	 * @throws IOException - if the file does not exist or its length does not match size and type
+	 */
+	public static MappedFusionOutput open( final File file, final int[] size, final RealType< ? > type ) throws IOException
+	{
+		if ( !file.isFile() )
+			throw new IOException( file + " does not exist." );
+
+		return new MappedFusionOutput( file, size, type, false );
+	}
+
+	/**
+	 * @param file - the raw file
+	 * @param size - the size of the output
+	 * @param type - the type of the pixels
+	 * @param overwrite - create a new file, otherwise the existing file has to match size and type
+	 * @throws IOException
+	 */
+	protected MappedFusionOutput( final File file, final int[] size, final RealType< ? > type, final boolean overwrite ) throws IOException
+	{
+		this.file = file;
+		this.size = size.clone();
+		this.numPlanes = size.length == 3 ? size[ 2 ] : 1;
+
+		if ( type instanceof UnsignedByteType )
+		{
+			bytesPerPixel = 1;
+			fileType = FileInfo.GRAY8;
+		}
+		else if ( type instanceof UnsignedShortType )
+		{
+			bytesPerPixel = 2;
+			fileType = FileInfo.GRAY16_UNSIGNED;
+		}
+		else
+		{
+			bytesPerPixel = 4;
+			fileType = FileInfo.GRAY32_FLOAT;
+		}
+
+		this.planeBytes = (long)size[ 0 ] * (long)size[ 1 ] * bytesPerPixel;
+
+		// one plane is one mapped buffer
+		if ( planeBytes > Integer.MAX_VALUE )
+			throw new IllegalArgumentException( "One plane is larger than 2 GB, cannot map it into memory." );
+
+		this.raf = new RandomAccessFile( file, "rw" );
+
+		if ( overwrite )
+		{
+			// regions without tiles are never written, so nothing of an earlier file may survive
+			this.raf.setLength( 0 );
+			this.raf.setLength( planeBytes * numPlanes );
+		}
+		else if ( raf.length() != planeBytes * numPlanes )
+		{
+			final long length = raf.length();
+			raf.close();
+			throw new IOException( file + " has " + length + " bytes, but " + planeBytes * numPlanes + " are expected for this size and type." );
+		}
+
+		this.channel = raf.getChannel();
+		this.planes = new AtomicReferenceArray< MappedByteBuffer >( numPlanes );
+	}
+
+	@Override
+	public int[] getDimensions() { return size.clone(); }
+
+	/**
+	 * @return - the raw file
+	 */
+	public File getFile() { return file; }
+
+	@Override
+	public void writeRow( final int[] pos, final float[] row, final int offset, final int length )
+	{
+		final MappedByteBuffer plane = getPlane( size.length == 3 ? pos[ 2 ] : 0 );
+
+		// absolute puts do not change the state of the buffer, so threads can write different rows at the same time
+		final int index = ( pos[ 1 ] * size[ 0 ] + pos[ 0 ] ) * bytesPerPixel;
+
+		if ( bytesPerPixel == 1 )
+		{
+			for ( int i = 0; i < length; ++i )
+				plane.put( index + i, (byte)RowAccess.round( row[ offset + i ] ) );
+		}
+		else if ( bytesPerPixel == 2 )
+		{
+			for ( int i = 0; i < length; ++i )
+				plane.putShort( index + i * 2, (short)RowAccess.round( row[ offset + i ] ) );
+		}
+		else
+		{
+			for ( int i = 0; i < length; ++i )
+				plane.putFloat( index + i * 4, row[ offset + i ] );
+		}
+	}
+
+	/**
+	 * @param z - the plane
+	 * @return - the mapped buffer of the plane
+	 */
+	public MappedByteBuffer getPlane( final int z )
+	{
+		MappedByteBuffer plane = planes.get( z );
+
+		if ( plane == null )
+		{
+			synchronized ( planes )
+			{
+				plane = planes.get( z );
+
+				if ( plane == null )
+				{
+					try
+					{
+						plane = channel.map( FileChannel.MapMode.READ_WRITE, z * planeBytes, planeBytes );
+					}
+					catch ( IOException e )
+					{
+						throw new RuntimeException( "Cannot map plane " + z + " of " + file + ": " + e );
+					}
+
+					planes.set( z, plane );
+				}
+			}
+		}
+
+		return plane;
+	}
+
+	/**
+	 * Writes all changes to disk and closes the file, the output cannot be written anymore
+	 *
+	 * @throws IOException
+	 */
+	public void close() throws IOException
+	{
+		for ( int z = 0; z < numPlanes; ++z )
+		{
+			final MappedByteBuffer plane = planes.get( z );
+
+			if ( plane != null )
+				plane.force();
+		}
+
+		channel.close();
+		raf.close();
+	}
+
+	/**
+	 * @return - how to read the raw file with ImageJ
+	 */
+	public FileInfo getFileInfo()
+	{
+		final FileInfo fi = new FileInfo();
+
+		fi.fileType = fileType;
+		fi.width = size[ 0 ];
+		fi.height = size[ 1 ];
+		fi.nImages = numPlanes;
+		fi.offset = 0;
+		fi.gapBetweenImages = 0;
+		fi.intelByteOrder = false;
+		fi.directory = file.getParent() == null ? "" : file.getParent() + File.separator;
+		fi.fileName = file.getName();
+
+		return fi;
+	}
+
+	/**
+	 * Opens the raw file as virtual stack, the planes are read from disk when they are displayed
+	 *
+	 * @return - the virtual ImagePlus
+	 */
+	public ImagePlus getImagePlus()
+	{
+		return new ImagePlus( file.getName(), new FileInfoVirtualStack( getFileInfo(), false ) );
+	}
+}
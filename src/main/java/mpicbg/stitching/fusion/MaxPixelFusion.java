@@ -1,10 +1,16 @@
 package mpicbg.stitching.fusion;
 
-public class MaxPixelFusion implements PixelFusion 
+import java.util.Arrays;
+
+public class MaxPixelFusion implements RowPixelFusion 
 {
 	float max;
 	boolean set;
 	
+	// for whole rows, pixels without a value are -infinity (see RowKernels)
+	float[] values = new float[ 0 ];
+	int rowLength = 0;
+	
 	public MaxPixelFusion() { clear(); }
 	
 	@Override
@@ -34,4 +40,24 @@ public class MaxPixelFusion implements PixelFusion
 
 	@Override
 	public PixelFusion copy() { return new MaxPixelFusion(); }
+
+	@Override
+	public void clearRow( final int length )
+	{
+		if ( values.length < length )
+			values = new float[ length ];
+		
+		Arrays.fill( values, 0, length, Float.NEGATIVE_INFINITY );
+		
+		rowLength = length;
+	}
+
+	@Override
+	public void addValues( final float[] v, final int start, final int length, final int imageId, final float[] localPosition, final float[] localStep )
+	{
+		RowKernels.max( values, v, start, length );
+	}
+
+	@Override
+	public void getValues( final float[] row ) { RowKernels.copyOrZero( values, row, rowLength, Float.NEGATIVE_INFINITY ); }
 }
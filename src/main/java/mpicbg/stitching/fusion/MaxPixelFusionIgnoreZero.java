@@ -21,6 +21,12 @@ public class MaxPixelFusionIgnoreZero extends MaxPixelFusion
 		}
 	}
 
+	@Override
+	public void addValues( final float[] v, final int start, final int length, final int imageId, final float[] localPosition, final float[] localStep )
+	{
+		RowKernels.maxNonZero( values, v, start, length );
+	}
+
 	@Override
 	public PixelFusion copy() { return new MaxPixelFusionIgnoreZero(); }
 }
@@ -1,40 +1,323 @@
 package mpicbg.stitching.fusion;
 
-import java.util.ArrayList;
-import java.util.Collections;
-
-public class MedianPixelFusion implements PixelFusion
+/**
+ * Computes the median of all values without boxing or sorting them. The values are collected in a
+ * reusable float[] and the median is found using quickselect. If the input is 8-bit or 16-bit, a
+ * counting histogram over the range of the values is used instead when that range is small enough.
+ */
+public class MedianPixelFusion implements RowPixelFusion
 {
-	final ArrayList< Float > list;
+	/**
+	 * From how many values on the histogram is used (if possible), up to 8 values the insertion sort is faster
+	 */
+	public static int histogramThreshold = 9;
+	
+	/**
+	 * The histogram is only used if max - min of the values is at most histogramRange * n, as it has
+	 * to scan all bins between them (measured: 16-bit values spread over 4096 are ~20x slower than quickselect)
+	 */
+	public static int histogramRange = 16;
+	
+	final int maxValue;
+	
+	// the initial size of the buffers, they grow if more values overlap
+	final int capacity;
+	
+	float[] values;
+	int count;
 	
-	public MedianPixelFusion() 
+	// only allocated if needed
+	int[] histogram = null;
+	
+	// for whole rows, the values of each pixel
+	float[][] rowValues = new float[ 0 ][];
+	int[] rowCounts = new int[ 0 ];
+	int rowLength = 0;
+	
+	/**
+	 * Instantiates the median fusion for float values
+	 */
+	public MedianPixelFusion() { this( 0, 16 ); }
+	
+	/**
+	 * Instantiates the median fusion
+	 * 
+	 * @param maxValue - the largest possible value if the input is integer (255 for 8-bit, 65535 for 16-bit), 0 for float
+	 * @param capacity - how many values overlap typically (the buffers will grow if necessary)
+	 */
+	public MedianPixelFusion( final int maxValue, final int capacity ) 
 	{
-		list = new ArrayList< Float >();
+		this.maxValue = maxValue;
+		this.capacity = Math.max( 1, capacity );
+		this.values = new float[ this.capacity ];
 		clear(); 
 	}
 	
 	@Override
-	public void clear() { list.clear();	}
+	public void clear() { count = 0; }
 
 	@Override
 	public void addValue( final float value, final int imageId, final float[] localPosition ) 
 	{
-		list.add( value );
+		add( value );
+	}
+	
+	protected void add( final float value )
+	{
+		if ( count == values.length )
+		{
+			final float[] tmp = new float[ values.length * 2 ];
+			System.arraycopy( values, 0, tmp, 0, count );
+			values = tmp;
+		}
+		
+		values[ count++ ] = value;
 	}
 
 	@Override
 	public float getValue() 
 	{ 
-		if ( list.size() == 0 )
-			return 0;
-		Collections.sort( list );
-		final int size = list.size();
+		return computeMedian( values, count );
+	}
+	
+	@Override
+	public PixelFusion copy() { return new MedianPixelFusion( maxValue, capacity ); }
+
+	@Override
+	public void clearRow( final int length )
+	{
+		if ( rowCounts.length < length )
+		{
+			final float[][] tmp = new float[ length ][];
+			
+			for ( int x = 0; x < length; ++x )
+				tmp[ x ] = x < rowValues.length ? rowValues[ x ] : new float[ capacity ];
+			
+			rowValues = tmp;
+			rowCounts = new int[ length ];
+		}
+		else
+		{
+			for ( int x = 0; x < length; ++x )
+				rowCounts[ x ] = 0;
+		}
 		
-		if ( size % 2 == 1 )
-			return list.get( size/2 );
-		return (list.get( size/2 - 1) + list.get( size/2 ))/2.0f ;
+		rowLength = length;
+	}
+
+	@Override
+	public void addValues( final float[] v, final int start, final int length, final int imageId, final float[] localPosition, final float[] localStep )
+	{
+		for ( int x = start; x < start + length; ++x )
+			add( x, v[ x ] );
 	}
 	
+	protected void add( final int x, final float value )
+	{
+		final int c = rowCounts[ x ];
+		
+		if ( c == rowValues[ x ].length )
+		{
+			final float[] tmp = new float[ c * 2 ];
+			System.arraycopy( rowValues[ x ], 0, tmp, 0, c );
+			rowValues[ x ] = tmp;
+		}
+		
+		rowValues[ x ][ c ] = value;
+		rowCounts[ x ] = c + 1;
+	}
+
 	@Override
-	public PixelFusion copy() { return new MedianPixelFusion(); }
+	public void getValues( final float[] row )
+	{
+		for ( int x = 0; x < rowLength; ++x )
+			row[ x ] = computeMedian( rowValues[ x ], rowCounts[ x ] );
+	}
+	
+	/**
+	 * @param a - the values, will be reordered
+	 * @param n - how many values
+	 * @return - the median, 0 if there are no values
+	 */
+	protected float computeMedian( final float[] a, final int n )
+	{
+		if ( n == 0 )
+			return 0;
+		
+		if ( maxValue > 0 && n >= histogramThreshold )
+		{
+			final int range = integerRange( a, n );
+			
+			if ( range >= 0 && range <= histogramRange * n )
+				return histogramMedian( a, n );
+		}
+		
+		return median( a, n );
+	}
+	
+	/**
+	 * @return - max - min of the values, or -1 if not all values are integers that fit into the histogram
+	 */
+	protected int integerRange( final float[] a, final int n )
+	{
+		int min = maxValue, max = 0;
+		
+		for ( int i = 0; i < n; ++i )
+		{
+			final float v = a[ i ];
+			
+			if ( v < 0 || v > maxValue || v != (int)v )
+				return -1;
+			
+			min = Math.min( min, (int)v );
+			max = Math.max( max, (int)v );
+		}
+		
+		return max - min;
+	}
+	
+	/**
+	 * @param a - the values, all integers between 0 and maxValue
+	 * @param n - how many values
+	 * @return - the median, the mean of the two central values if n is even
+	 */
+	protected float histogramMedian( final float[] a, final int n )
+	{
+		if ( histogram == null )
+			histogram = new int[ maxValue + 1 ];
+		
+		int min = maxValue, max = 0;
+		
+		for ( int i = 0; i < n; ++i )
+		{
+			final int v = (int)a[ i ];
+			++histogram[ v ];
+			min = Math.min( min, v );
+			max = Math.max( max, v );
+		}
+		
+		// the (n-1)/2'th and n/2'th value, which are identical if n is odd
+		final int k1 = ( n - 1 ) / 2;
+		final int k2 = n / 2;
+		int v1 = -1, v2 = -1;
+		int sum = 0;
+		
+		for ( int v = min; v <= max && v2 < 0; ++v )
+		{
+			sum += histogram[ v ];
+			
+			if ( v1 < 0 && sum > k1 )
+				v1 = v;
+			if ( sum > k2 )
+				v2 = v;
+		}
+		
+		// reset only what was used
+		for ( int i = 0; i < n; ++i )
+			histogram[ (int)a[ i ] ] = 0;
+		
+		return ( v1 + v2 ) / 2.0f;
+	}
+	
+	/**
+	 * Computes the median of the first n values, the array will be reordered
+	 * 
+	 * @param a - the values
+	 * @param n - how many values
+	 * @return - the median, the mean of the two central values if n is even
+	 */
+	public static float median( final float[] a, final int n )
+	{
+		if ( n <= 8 )
+		{
+			// insertion sort is fastest for the typical few overlapping tiles
+			for ( int i = 1; i < n; ++i )
+			{
+				final float v = a[ i ];
+				int j = i - 1;
+				
+				while ( j >= 0 && a[ j ] > v )
+				{
+					a[ j + 1 ] = a[ j ];
+					--j;
+				}
+				
+				a[ j + 1 ] = v;
+			}
+			
+			if ( n % 2 == 1 )
+				return a[ n / 2 ];
+			return ( a[ n / 2 - 1 ] + a[ n / 2 ] ) / 2.0f;
+		}
+		
+		final int k = n / 2;
+		final float upper = select( a, n, k );
+		
+		if ( n % 2 == 1 )
+			return upper;
+		
+		// after the selection all values left of k are smaller or equal
+		float lower = a[ 0 ];
+		for ( int i = 1; i < k; ++i )
+			lower = Math.max( lower, a[ i ] );
+		
+		return ( lower + upper ) / 2.0f;
+	}
+	
+	/**
+	 * Quickselect, afterwards a[ k ] contains the k'th smallest value, all values left of it are smaller or equal
+	 * and all values right of it are larger or equal
+	 * 
+	 * @param a - the values
+	 * @param n - how many values
+	 * @param k - which one
+	 * @return - the k'th smallest value
+	 */
+	public static float select( final float[] a, final int n, final int k )
+	{
+		int left = 0, right = n - 1;
+		
+		while ( right > left )
+		{
+			// median of three as pivot
+			final int mid = ( left + right ) >>> 1;
+			
+			if ( a[ mid ] < a[ left ] )
+				swap( a, mid, left );
+			if ( a[ right ] < a[ left ] )
+				swap( a, right, left );
+			if ( a[ right ] < a[ mid ] )
+				swap( a, right, mid );
+			
+			final float pivot = a[ mid ];
+			int i = left, j = right;
+			
+			while ( i <= j )
+			{
+				while ( a[ i ] < pivot )
+					++i;
+				while ( a[ j ] > pivot )
+					--j;
+				
+				if ( i <= j )
+					swap( a, i++, j-- );
+			}
+			
+			if ( k <= j )
+				right = j;
+			else if ( k >= i )
+				left = i;
+			else
+				break;
+		}
+		
+		return a[ k ];
+	}
+	
+	private static void swap( final float[] a, final int i, final int j )
+	{
+		final float tmp = a[ i ];
+		a[ i ] = a[ j ];
+		a[ j ] = tmp;
+	}
 }
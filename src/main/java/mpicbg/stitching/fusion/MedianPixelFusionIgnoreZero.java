@@ -5,13 +5,29 @@ public class MedianPixelFusionIgnoreZero extends MedianPixelFusion
 {
 	public MedianPixelFusionIgnoreZero() { super(); }
 	
+	/**
+	 * Instantiates the median fusion
+	 * 
+	 * @param maxValue - the largest possible value if the input is integer (255 for 8-bit, 65535 for 16-bit), 0 for float
+	 * @param capacity - how many values overlap typically (the buffers will grow if necessary)
+	 */
+	public MedianPixelFusionIgnoreZero( final int maxValue, final int capacity ) { super( maxValue, capacity ); }
+	
 	@Override
 	public void addValue( final float value, final int imageId, final float[] localPosition ) 
 	{
 		if ( value != 0.0 )
-			list.add( value );
+			add( value );
+	}
+
+	@Override
+	public void addValues( final float[] v, final int start, final int length, final int imageId, final float[] localPosition, final float[] localStep )
+	{
+		for ( int x = start; x < start + length; ++x )
+			if ( v[ x ] != 0.0 )
+				add( x, v[ x ] );
 	}
 
 	@Override
-	public PixelFusion copy() { return new MedianPixelFusionIgnoreZero(); }
+	public PixelFusion copy() { return new MedianPixelFusionIgnoreZero( maxValue, capacity ); }
 }
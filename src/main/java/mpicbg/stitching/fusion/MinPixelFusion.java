@@ -1,10 +1,16 @@
 package mpicbg.stitching.fusion;
 
-public class MinPixelFusion implements PixelFusion 
+import java.util.Arrays;
+
+public class MinPixelFusion implements RowPixelFusion 
 {
 	float min;
 	boolean set;
 	
+	// for whole rows, pixels without a value are +infinity (see RowKernels)
+	float[] values = new float[ 0 ];
+	int rowLength = 0;
+	
 	public MinPixelFusion() { clear(); }
 	
 	@Override
@@ -33,4 +39,24 @@ public class MinPixelFusion implements PixelFusion
 
 	@Override
 	public PixelFusion copy() { return new MinPixelFusion(); }
+
+	@Override
+	public void clearRow( final int length )
+	{
+		if ( values.length < length )
+			values = new float[ length ];
+		
+		Arrays.fill( values, 0, length, Float.POSITIVE_INFINITY );
+		
+		rowLength = length;
+	}
+
+	@Override
+	public void addValues( final float[] v, final int start, final int length, final int imageId, final float[] localPosition, final float[] localStep )
+	{
+		RowKernels.min( values, v, start, length );
+	}
+
+	@Override
+	public void getValues( final float[] row ) { RowKernels.copyOrZero( values, row, rowLength, Float.POSITIVE_INFINITY ); }
 }
@@ -21,6 +21,12 @@ public class MinPixelFusionIgnoreZero extends MinPixelFusion
 		}
 	}
 
+	@Override
+	public void addValues( final float[] v, final int start, final int length, final int imageId, final float[] localPosition, final float[] localStep )
+	{
+		RowKernels.minNonZero( values, v, start, length );
+	}
+
 	@Override
 	public PixelFusion copy() { return new MinPixelFusionIgnoreZero(); }
 }
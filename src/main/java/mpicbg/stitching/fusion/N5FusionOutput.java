@@ -0,0 +1,308 @@
+package mpicbg.stitching.fusion;
+
+import ij.IJ;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPOutputStream;
+
+import mpicbg.imglib.type.numeric.RealType;
+
+/**
+ * Writes the fusion of one channel and timepoint into an N5 dataset (a directory with an attributes.json and one
+ * gzip-compressed file per chunk, see https://github.com/saalfeldlab/n5). The dataset is always XYZCT, 2d images
+ * have a z-size of 1, and the chunks have a size of 1 in c and t. The chunks are the blocks of the fusion, so
+ * every chunk is fused by one thread which also writes it, no locking is necessary. Chunks that are not covered
+ * by any tile are not written, N5 readers return 0 for them.
+ */
+public class N5FusionOutput implements BlockFusionOutput
+{
+	/**
+	 * The size of the chunks in 2d and 3d
+	 */
+	public static int[] chunkSize2d = new int[] { 256, 256 };
+	public static int[] chunkSize3d = new int[] { 64, 64, 64 };
+
+	final File datasetDir;
+	final int[] size, blockSize;
+	final int c, t;
+	final RealType< ? > type;
+	final int blockPixels;
+
+	// the first chunk that could not be written, see checkError()
+	final AtomicReference< IOException > error = new AtomicReference< IOException >();
+
+	// every thread fills its own chunk
+	final ThreadLocal< Object > buffers = new ThreadLocal< Object >()
+	{
+		@Override
+		protected Object initialValue() { return RowAccess.createArray( type, blockPixels ); }
+	};
+
+	/**
+	 * @param datasetDir - the directory of the dataset, has to be created with {@link #createDataset(File, String, int[], int, int, int[], RealType)}
+	 * @param size - the size of the fused image (2d or 3d)
+	 * @param blockSize - the size of the chunks (2d or 3d)
+	 * @param type - the type of the dataset
+	 * @param c - the channel (0-based)
+	 * @param t - the timepoint (0-based)
+	 */
+	public N5FusionOutput( final File datasetDir, final int[] size, final int[] blockSize, final RealType< ? > type, final int c, final int t )
+	{
+		this.datasetDir = datasetDir;
+		this.size = size.clone();
+		this.blockSize = blockSize.clone();
+		this.type = type;
+		this.c = c;
+		this.t = t;
+
+		int n = 1;
+		for ( final int s : blockSize )
+			n *= s;
+
+		this.blockPixels = n;
+	}
+
+	/**
+	 * @param numDimensions - 2 or 3
+	 * @return - a copy of the default chunk size
+	 */
+	public static int[] getDefaultChunkSize( final int numDimensions )
+	{
+		if ( numDimensions == 2 )
+			return chunkSize2d.clone();
+		else
+			return chunkSize3d.clone();
+	}
+
+	/**
+	 * Creates the N5 container (if necessary) and the attributes of the dataset. If the dataset exists already, all its
+	 * chunks are deleted, as chunks that are not covered by any tile are not written and old ones would remain.
+	 *
+	 * @param root - the directory of the N5 container
+	 * @param dataset - the name of the dataset
+	 * @param size - the size of the fused image (2d or 3d)
+	 * @param numChannels - the number of channels
+	 * @param numTimePoints - the number of timepoints
+	 * @param blockSize - the size of the chunks (2d or 3d)
+	 * @param type - the type, {@link mpicbg.imglib.type.numeric.integer.UnsignedByteType}, {@link mpicbg.imglib.type.numeric.integer.UnsignedShortType} or float
+	 * @return - the directory of the dataset
+	 * @throws IOException
+	 */
+	public static File createDataset( final File root, final String dataset, final int[] size, final int numChannels, final int numTimePoints,
+			final int[] blockSize, final RealType< ? > type ) throws IOException
+	{
+		final File datasetDir = new File( root, dataset );
+
+		if ( datasetDir.isDirectory() )
+			deleteChunks( datasetDir );
+		else if ( !datasetDir.mkdirs() )
+			throw new IOException( "Cannot create " + datasetDir );
+
+		final File rootAttributes = new File( root, "attributes.json" );
+
+		if ( !rootAttributes.exists() )
+			writeText( rootAttributes, "{\"n5\":\"2.0.0\"}" );
+
+		final long[] dimensions = new long[] { size[ 0 ], size[ 1 ], size.length == 3 ? size[ 2 ] : 1, numChannels, numTimePoints };
+		final int[] chunk = new int[] { blockSize[ 0 ], blockSize[ 1 ], size.length == 3 ? blockSize[ 2 ] : 1, 1, 1 };
+
+		writeText( new File( datasetDir, "attributes.json" ),
+				"{\"dimensions\":" + Arrays.toString( dimensions ).replace( " ", "" ) +
+				",\"blockSize\":" + Arrays.toString( chunk ).replace( " ", "" ) +
+				",\"dataType\":\"" + getDataType( type ) + "\"" +
+				",\"compression\":{\"type\":\"gzip\",\"level\":-1}" +
+				",\"axes\":[\"x\",\"y\",\"z\",\"c\",\"t\"]}" );
+
+		return datasetDir;
+	}
+
+	/**
+	 * Deletes all chunks of an existing dataset, i.e. the directories with numeric names
+	 *
+	 * @param datasetDir - the directory of the dataset
+	 * @throws IOException - if it is not an N5 dataset or a chunk cannot be deleted
+	 */
+	protected static void deleteChunks( final File datasetDir ) throws IOException
+	{
+		final File[] files = datasetDir.listFiles();
+
+		if ( files == null || files.length == 0 )
+			return;
+
+		// do not delete anything in a directory that we did not create
+		if ( !new File( datasetDir, "attributes.json" ).exists() )
+			throw new IOException( datasetDir + " exists and is not an N5 dataset." );
+
+		for ( final File file : files )
+			if ( file.getName().matches( "[0-9]+" ) )
+				delete( file );
+	}
+
+	protected static void delete( final File file ) throws IOException
+	{
+		final File[] files = file.listFiles();
+
+		if ( files != null )
+			for ( final File f : files )
+				delete( f );
+
+		if ( !file.delete() )
+			throw new IOException( "Cannot delete " + file );
+	}
+
+	/**
+	 * @throws IOException - the first error that happened while writing the chunks, if any
+	 */
+	public void checkError() throws IOException
+	{
+		final IOException e = error.get();
+
+		if ( e != null )
+			throw e;
+	}
+
+	@Override
+	public int[] getDimensions() { return size.clone(); }
+
+	@Override
+	public int[] getBlockSize() { return blockSize.clone(); }
+
+	@Override
+	public void writeRow( final int[] pos, final float[] row, final int offset, final int length )
+	{
+		// the blocks start at multiples of the block size
+		int index = 0;
+
+		for ( int d = pos.length - 1; d >= 0; --d )
+			index = index * blockSize[ d ] + pos[ d ] % blockSize[ d ];
+
+		RowAccess.write( row, offset, buffers.get(), index, length );
+	}
+
+	@Override
+	public void finishBlock( final int[] min, final int[] max )
+	{
+		final Object buffer = buffers.get();
+
+		try
+		{
+			writeChunk( min, max, buffer );
+		}
+		catch ( IOException e )
+		{
+			// the fusion continues, the error is thrown by checkError() once it is done
+			if ( error.compareAndSet( null, e ) )
+				IJ.log( "Cannot write chunk " + Arrays.toString( min ) + " of " + datasetDir + ": " + e );
+		}
+
+		// the next block might not write all pixels
+		if ( buffer instanceof byte[] )
+			Arrays.fill( (byte[])buffer, (byte)0 );
+		else if ( buffer instanceof short[] )
+			Arrays.fill( (short[])buffer, (short)0 );
+		else
+			Arrays.fill( (float[])buffer, 0 );
+	}
+
+	/**
+	 * Writes the header (mode, number of dimensions, size of the chunk) and the gzip-compressed, big-endian pixels
+	 */
+	protected void writeChunk( final int[] min, final int[] max, final Object buffer ) throws IOException
+	{
+		final int n = min.length;
+		final int[] dim = new int[ 5 ];
+		final long[] gridPos = new long[ 5 ];
+
+		Arrays.fill( dim, 1 );
+
+		for ( int d = 0; d < n; ++d )
+		{
+			dim[ d ] = max[ d ] - min[ d ] + 1;
+			gridPos[ d ] = min[ d ] / blockSize[ d ];
+		}
+
+		gridPos[ 3 ] = c;
+		gridPos[ 4 ] = t;
+
+		File file = datasetDir;
+		for ( int d = 0; d < 4; ++d )
+			file = new File( file, Long.toString( gridPos[ d ] ) );
+
+		// several threads might create the same directory at the same time
+		if ( !file.isDirectory() && !file.mkdirs() && !file.isDirectory() )
+			throw new IOException( "Cannot create " + file );
+
+		file = new File( file, Long.toString( gridPos[ 4 ] ) );
+
+		final FileOutputStream fos = new FileOutputStream( file );
+
+		try
+		{
+			final DataOutputStream header = new DataOutputStream( fos );
+			header.writeShort( 0 );
+			header.writeShort( 5 );
+			for ( int d = 0; d < 5; ++d )
+				header.writeInt( dim[ d ] );
+			header.flush();
+
+			final DataOutputStream data = new DataOutputStream( new BufferedOutputStream( new GZIPOutputStream( fos ), 65536 ) );
+
+			// only the part of the buffer that is inside the image
+			final int depth = n == 3 ? dim[ 2 ] : 1;
+
+			for ( int z = 0; z < depth; ++z )
+				for ( int y = 0; y < dim[ 1 ]; ++y )
+				{
+					final int i = ( z * blockSize[ 1 ] + y ) * blockSize[ 0 ];
+
+					if ( buffer instanceof byte[] )
+						data.write( (byte[])buffer, i, dim[ 0 ] );
+					else if ( buffer instanceof short[] )
+						for ( int x = 0; x < dim[ 0 ]; ++x )
+							data.writeShort( ((short[])buffer)[ i + x ] );
+					else
+						for ( int x = 0; x < dim[ 0 ]; ++x )
+							data.writeFloat( ((float[])buffer)[ i + x ] );
+				}
+
+			data.close();
+		}
+		finally
+		{
+			fos.close();
+		}
+	}
+
+	protected static String getDataType( final RealType< ? > type )
+	{
+		final Object array = RowAccess.createArray( type, 0 );
+
+		if ( array instanceof byte[] )
+			return "uint8";
+		else if ( array instanceof short[] )
+			return "uint16";
+		else
+			return "float32";
+	}
+
+	protected static void writeText( final File file, final String text ) throws IOException
+	{
+		final FileWriter writer = new FileWriter( file );
+
+		try
+		{
+			writer.write( text );
+		}
+		finally
+		{
+			writer.close();
+		}
+	}
+}
@@ -18,9 +18,9 @@ import mpicbg.imglib.exception.ImgLibException;
 import mpicbg.imglib.image.Image;
 import mpicbg.imglib.image.ImageFactory;
 import mpicbg.imglib.image.display.imagej.ImageJFunctions;
-import mpicbg.imglib.interpolation.Interpolator;
 import mpicbg.imglib.interpolation.InterpolatorFactory;
 import mpicbg.imglib.interpolation.linear.LinearInterpolatorFactory;
+import mpicbg.imglib.interpolation.nearestneighbor.NearestNeighborInterpolatorFactory;
 import mpicbg.imglib.multithreading.Chunk;
 import mpicbg.imglib.multithreading.SimpleMultiThreading;
 import mpicbg.imglib.outofbounds.OutOfBoundsStrategyValueFactory;
@@ -78,7 +78,7 @@ public class OverlayFusion
 			for ( int c = 1; c <= imp.getNChannels(); ++c )
 			{
 				final Image<T> out = f.createImage( size );
-				fuseChannel( out, ImageJFunctions.convertFloat( Hyperstack_rearranger.getImageChunk( imp, c, t ) ), offset, models.get( t - 1 ), new LinearInterpolatorFactory<FloatType>( new OutOfBoundsStrategyValueFactory<FloatType>() ) );
+				fuseChannel( out, Fusion.interpolateImage( imp, c, t, false ), offset, models.get( t - 1 ) );
 				try 
 				{
 					final ImagePlus outImp = ((ImagePlusContainer<?,?>)out.getContainer()).getImagePlus();
@@ -140,7 +140,7 @@ public class OverlayFusion
 			for ( int c = 1; c <= imp.getNChannels(); ++c )
 			{
 				final Image<T> out = f.createImage( size );
-				fuseChannel( out, ImageJFunctions.convertFloat( Hyperstack_rearranger.getImageChunk( imp, c, timepoint ) ), offset, models.get( i + (timepoint - 1) * numImages ), factory );
+				fuseChannel( out, wrapChannel( imp, c, timepoint, factory ), offset, models.get( i + (timepoint - 1) * numImages ) );
 				try 
 				{
 					final ImagePlus outImp = ((ImagePlusContainer<?,?>)out.getContainer()).getImagePlus();
@@ -174,14 +174,34 @@ public class OverlayFusion
 		return CompositeImageFixer.makeComposite( result, CompositeImage.COMPOSITE );
 	}
 		
+	/**
+	 * Wraps one channel and timepoint of an image. Linear interpolation reads the original pixels (0 outside of the image)
+	 * and nearest neighbor needs no conversion at all, only other interpolations work on a float copy.
+	 * 
+	 * @param imp - the image
+	 * @param c - the channel
+	 * @param t - the timepoint
+	 * @param factory - the interpolation
+	 * @return - the wrapped image
+	 */
+	protected static ImageInterpolation< ? extends RealType< ? > > wrapChannel( final ImagePlus imp, final int c, final int t, final InterpolatorFactory< FloatType > factory )
+	{
+		if ( factory instanceof LinearInterpolatorFactory )
+			return Fusion.interpolateImage( imp, c, t, false );
+		else if ( factory instanceof NearestNeighborInterpolatorFactory )
+			return Fusion.wrapImage( imp, c, t );
+		else
+			return new ImageInterpolation<FloatType>( ImageJFunctions.convertFloat( Hyperstack_rearranger.getImageChunk( imp, c, t ) ), factory );
+	}
+	
 	/**
 	 * Fuse one slice/volume (one channel)
 	 * 
 	 * @param output - same the type of the ImagePlus input
-	 * @param input - FloatType, because of Interpolation that needs to be done
+	 * @param input - the input, interpolated as float
 	 * @param transform - the transformation
 	 */
-	protected static <T extends RealType<T>> void fuseChannel( final Image<T> output, final Image<FloatType> input, final float[] offset, final InvertibleCoordinateTransform transform, final InterpolatorFactory< FloatType > factory )
+	protected static <T extends RealType<T>> void fuseChannel( final Image<T> output, final ImageInterpolation< ? extends RealType< ? > > input, final float[] offset, final InvertibleCoordinateTransform transform )
 	{
 		final int dims = output.getNumDimensions();
 		long imageSize = output.getDimension( 0 );
@@ -210,9 +230,9 @@ public class OverlayFusion
                 	final long loopSize = myChunk.getLoopSize();
                 	
             		final LocalizableCursor<T> out = output.createLocalizableCursor();
-            		final Interpolator<FloatType> in = input.createInterpolator( factory );
+            		final RealSampler in = input.createSampler();
             		
-            		final float[] tmp = new float[ input.getNumDimensions() ];
+            		final float[] tmp = new float[ input.getImage().getNumDimensions() ];
             		
             		try 
             		{
@@ -229,8 +249,7 @@ public class OverlayFusion
             				
             				transform.applyInverseInPlace( tmp );
             	
-            				in.setPosition( tmp );			
-            				out.getType().setReal( in.getType().get() );
+            				out.getType().setReal( in.get( tmp ) );
             			}
             		} 
             		catch (NoninvertibleModelException e) 
@@ -246,9 +265,9 @@ public class OverlayFusion
 		
         /*
 		final LocalizableCursor<T> out = output.createLocalizableCursor();
-		final Interpolator<FloatType> in = input.createInterpolator( factory );
+		final RealSampler in = input.createSampler();
 		
-		final float[] tmp = new float[ input.getNumDimensions() ];
+		final float[] tmp = new float[ input.getImage().getNumDimensions() ];
 		
 		try 
 		{
@@ -261,8 +280,7 @@ public class OverlayFusion
 				
 				transform.applyInverseInPlace( tmp );
 	
-				in.setPosition( tmp );			
-				out.getType().setReal( in.getType().get() );
+				out.getType().setReal( in.get( tmp ) );
 			}
 		} 
 		catch (NoninvertibleModelException e) 
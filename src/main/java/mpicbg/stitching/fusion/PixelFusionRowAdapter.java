@@ -0,0 +1,161 @@
+package mpicbg.stitching.fusion;
+
+/**
+ * Makes any {@link PixelFusion} usable as a {@link RowPixelFusion}. All values of a row are collected per pixel
+ * and then handed to the {@link PixelFusion} pixel by pixel.
+ */
+public class PixelFusionRowAdapter implements RowPixelFusion
+{
+	final PixelFusion fusion;
+	
+	int numDimensions = 0;
+	int rowLength = 0;
+	
+	// for each pixel of the row: how many values, the values, image ids and local positions
+	int[] counts = new int[ 0 ];
+	float[][] values = new float[ 0 ][];
+	int[][] imageIds = new int[ 0 ][];
+	float[][] localPositions = new float[ 0 ][];
+	
+	float[] localPosition = new float[ 0 ];
+	
+	/**
+	 * @param fusion - the {@link PixelFusion} that computes the result
+	 */
+	public PixelFusionRowAdapter( final PixelFusion fusion )
+	{
+		this.fusion = fusion;
+	}
+	
+	/**
+	 * @param fusion - any {@link PixelFusion}
+	 * @return - the fusion itself if it is a {@link RowPixelFusion}, otherwise a {@link PixelFusionRowAdapter}
+	 */
+	public static RowPixelFusion wrap( final PixelFusion fusion )
+	{
+		if ( fusion instanceof RowPixelFusion )
+			return (RowPixelFusion)fusion;
+		else
+			return new PixelFusionRowAdapter( fusion );
+	}
+	
+	@Override
+	public void clear() { fusion.clear(); }
+
+	@Override
+	public void addValue( final float value, final int imageId, final float[] localPosition ) { fusion.addValue( value, imageId, localPosition ); }
+
+	@Override
+	public float getValue() { return fusion.getValue(); }
+
+	@Override
+	public PixelFusion copy() { return new PixelFusionRowAdapter( fusion.copy() ); }
+
+	@Override
+	public void clearRow( final int length )
+	{
+		if ( counts.length < length )
+		{
+			counts = new int[ length ];
+			
+			final float[][] v = new float[ length ][];
+			final int[][] ids = new int[ length ][];
+			final float[][] l = new float[ length ][];
+			
+			for ( int x = 0; x < length; ++x )
+			{
+				if ( x < values.length )
+				{
+					v[ x ] = values[ x ];
+					ids[ x ] = imageIds[ x ];
+					l[ x ] = localPositions[ x ];
+				}
+				else
+				{
+					v[ x ] = new float[ 4 ];
+					ids[ x ] = new int[ 4 ];
+					l[ x ] = new float[ 4 * Math.max( 1, numDimensions ) ];
+				}
+			}
+			
+			values = v;
+			imageIds = ids;
+			localPositions = l;
+		}
+		else
+		{
+			for ( int x = 0; x < length; ++x )
+				counts[ x ] = 0;
+		}
+		
+		rowLength = length;
+	}
+
+	@Override
+	public void addValues( final float[] v, final int start, final int length, final int imageId, final float[] localPos, final float[] localStep )
+	{
+		final int n = localPos.length;
+		
+		if ( n != numDimensions )
+		{
+			numDimensions = n;
+			localPosition = new float[ n ];
+		}
+		
+		for ( int i = 0; i < length; ++i )
+		{
+			final int x = start + i;
+			final int c = counts[ x ];
+			
+			if ( c == values[ x ].length || ( c + 1 ) * n > localPositions[ x ].length )
+			{
+				values[ x ] = grow( values[ x ], c * 2 + 1 );
+				imageIds[ x ] = grow( imageIds[ x ], c * 2 + 1 );
+				localPositions[ x ] = grow( localPositions[ x ], ( c * 2 + 1 ) * n );
+			}
+			
+			values[ x ][ c ] = v[ x ];
+			imageIds[ x ][ c ] = imageId;
+			
+			for ( int d = 0; d < n; ++d )
+				localPositions[ x ][ c * n + d ] = localPos[ d ] + i * localStep[ d ];
+			
+			counts[ x ] = c + 1;
+		}
+	}
+
+	@Override
+	public void getValues( final float[] row )
+	{
+		final int n = numDimensions;
+		
+		for ( int x = 0; x < rowLength; ++x )
+		{
+			fusion.clear();
+			
+			for ( int c = 0; c < counts[ x ]; ++c )
+			{
+				for ( int d = 0; d < n; ++d )
+					localPosition[ d ] = localPositions[ x ][ c * n + d ];
+				
+				fusion.addValue( values[ x ][ c ], imageIds[ x ][ c ], localPosition );
+			}
+			
+			row[ x ] = fusion.getValue();
+		}
+	}
+	
+	private static float[] grow( final float[] a, final int length )
+	{
+		final float[] b = new float[ Math.max( length, a.length ) ];
+		System.arraycopy( a, 0, b, 0, a.length );
+		return b;
+	}
+	
+	private static int[] grow( final int[] a, final int length )
+	{
+		final int[] b = new int[ Math.max( length, a.length ) ];
+		System.arraycopy( a, 0, b, 0, a.length );
+		return b;
+	}
+}
@@ -0,0 +1,161 @@
+package mpicbg.stitching.fusion;
+
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.util.Arrays;
+
+import mpicbg.imglib.cursor.LocalizableCursor;
+import mpicbg.imglib.image.Image;
+import mpicbg.imglib.type.numeric.RealType;
+
+/**
+ * The maximum and/or average intensity projection along z of one channel and timepoint. The planes are added
+ * while they are fused (before a slice is written to disk, or right after a volume is fused in memory), so the
+ * fused volume never has to be loaded again. The maximum has the type of the fusion, the average is always
+ * 32-bit (like ImageJ's Z Project).
+ */
+public class Projection
+{
+	final RealType< ? > type;
+	final int width, height;
+
+	// null if this projection is not computed
+	final float[] max;
+	final double[] sum;
+
+	int numPlanes = 0;
+
+	/**
+	 * @param type - the type of the fused image
+	 * @param width - the width of the fused image
+	 * @param height - the height of the fused image
+	 * @param maxProjection - compute the maximum intensity projection
+	 * @param meanProjection - compute the average intensity projection
+	 */
+	public Projection( final RealType< ? > type, final int width, final int height, final boolean maxProjection, final boolean meanProjection )
+	{
+		this.type = type;
+		this.width = width;
+		this.height = height;
+		this.max = maxProjection ? new float[ width * height ] : null;
+		this.sum = meanProjection ? new double[ width * height ] : null;
+	}
+
+	/**
+	 * Adds one fused plane
+	 *
+	 * @param plane - byte[], short[] or float[] of the size of the projection
+	 */
+	public synchronized void addPlane( final Object plane )
+	{
+		final int n = width * height;
+		final float[] row = new float[ width ];
+
+		for ( int i = 0; i < n; i += width )
+		{
+			RowAccess.read( plane, i, row, 0, width );
+			addRow( i, row );
+		}
+
+		++numPlanes;
+	}
+
+	/**
+	 * Adds all planes of a fused 3d image
+	 *
+	 * @param image - the fused image
+	 */
+	public synchronized void addImage( final Image< ? extends RealType< ? > > image )
+	{
+		final Object[] planes = RowAccess.getPlanes( image );
+
+		if ( planes != null )
+		{
+			for ( final Object plane : planes )
+				addPlane( plane );
+
+			return;
+		}
+
+		// not stored as ImagePlus, all planes are added at once
+		if ( max != null && numPlanes == 0 )
+			Arrays.fill( max, -Float.MAX_VALUE );
+
+		final LocalizableCursor< ? extends RealType< ? > > cursor = image.createLocalizableCursor();
+
+		while ( cursor.hasNext() )
+		{
+			cursor.fwd();
+			addValue( cursor.getPosition( 1 ) * width + cursor.getPosition( 0 ), cursor.getType().getRealFloat() );
+		}
+
+		cursor.close();
+
+		numPlanes += image.getNumDimensions() == 3 ? image.getDimension( 2 ) : 1;
+	}
+
+	protected void addRow( final int index, final float[] row )
+	{
+		if ( numPlanes == 0 )
+		{
+			if ( max != null )
+				System.arraycopy( row, 0, max, index, width );
+
+			if ( sum != null )
+				for ( int x = 0; x < width; ++x )
+					sum[ index + x ] = row[ x ];
+
+			return;
+		}
+
+		for ( int x = 0; x < width; ++x )
+			addValue( index + x, row[ x ] );
+	}
+
+	protected void addValue( final int index, final float value )
+	{
+		if ( max != null && value > max[ index ] )
+			max[ index ] = value;
+
+		if ( sum != null )
+			sum[ index ] += value;
+	}
+
+	/**
+	 * @return - the maximum intensity projection in the type of the fusion, or null if it is not computed
+	 */
+	public synchronized ImageProcessor getMaxProjection()
+	{
+		if ( max == null )
+			return null;
+
+		final Object pixels = RowAccess.createArray( type, width * height );
+		RowAccess.write( max, 0, pixels, 0, width * height );
+
+		if ( pixels instanceof byte[] )
+			return new ByteProcessor( width, height, (byte[])pixels, null );
+		else if ( pixels instanceof short[] )
+			return new ShortProcessor( width, height, (short[])pixels, null );
+		else
+			return new FloatProcessor( width, height, (float[])pixels, null );
+	}
+
+	/**
+	 * @return - the average intensity projection (32-bit), or null if it is not computed
+	 */
+	public synchronized ImageProcessor getMeanProjection()
+	{
+		if ( sum == null )
+			return null;
+
+		final float[] pixels = new float[ width * height ];
+
+		for ( int i = 0; i < pixels.length; ++i )
+			pixels[ i ] = (float)( sum[ i ] / Math.max( 1, numPlanes ) );
+
+		return new FloatProcessor( width, height, pixels, null );
+	}
+}
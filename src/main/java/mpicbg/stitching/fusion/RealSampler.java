@@ -0,0 +1,14 @@
+package mpicbg.stitching.fusion;
+
+/**
+ * Returns the value of an image at arbitrary positions as float, see {@link ImageInterpolation#createSampler()}.
+ * One instance per thread.
+ */
+public interface RealSampler
+{
+	/**
+	 * @param position - the position in the local coordinates of the image
+	 * @return - the (interpolated) value at this position
+	 */
+	public float get( final float[] position );
+}
@@ -0,0 +1,206 @@
+package mpicbg.stitching.fusion;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import mpicbg.imglib.container.imageplus.ImagePlusContainer;
+import mpicbg.imglib.exception.ImgLibException;
+import mpicbg.imglib.image.Image;
+import mpicbg.imglib.type.numeric.RealType;
+import mpicbg.imglib.type.numeric.integer.UnsignedByteType;
+import mpicbg.imglib.type.numeric.integer.UnsignedShortType;
+
+/**
+ * Reads and writes rows of pixels directly from and to the primitive arrays (byte[], short[] or float[])
+ * of an ImageJ stack, so that the fusion does not need to go through cursors for every single pixel.
+ */
+public class RowAccess
+{
+	/**
+	 * Returns the primitive pixel arrays of all planes of an {@link Image} that is backed by an {@link ImagePlusContainer}.
+	 *
+	 * @param image - the image
+	 * @return - one byte[], short[] or float[] per z-plane, or null if the image is not stored in an ImagePlus,
+	 * is virtual or has an unsupported type
+	 */
+	public static Object[] getPlanes( final Image< ? > image )
+	{
+		if ( !( image.getContainer() instanceof ImagePlusContainer ) )
+			return null;
+
+		try
+		{
+			return getPlanes( ((ImagePlusContainer<?,?>)image.getContainer()).getImagePlus() );
+		}
+		catch ( ImgLibException e )
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the primitive pixel arrays of all planes of an {@link ImagePlus}.
+	 *
+	 * @param imp - the image
+	 * @return - one byte[], short[] or float[] per plane, or null if the image is virtual or has an unsupported type
+	 */
+	public static Object[] getPlanes( final ImagePlus imp )
+	{
+		final ImageStack stack = imp.getStack();
+
+		if ( stack.isVirtual() )
+			return null;
+
+		final Object[] planes = new Object[ stack.getSize() ];
+
+		for ( int z = 0; z < planes.length; ++z )
+		{
+			planes[ z ] = stack.getPixels( z + 1 );
+
+			if ( !( planes[ z ] instanceof byte[] || planes[ z ] instanceof short[] || planes[ z ] instanceof float[] ) )
+				return null;
+		}
+
+		return planes;
+	}
+
+	/**
+	 * Reads a row of pixels as float
+	 *
+	 * @param plane - byte[], short[] or float[]
+	 * @param index - the index of the first pixel in the plane
+	 * @param row - the target array
+	 * @param offset - the first index in the target array
+	 * @param length - the number of pixels
+	 */
+	public static void read( final Object plane, final int index, final float[] row, final int offset, final int length )
+	{
+		if ( plane instanceof byte[] )
+		{
+			final byte[] p = (byte[])plane;
+			for ( int i = 0; i < length; ++i )
+				row[ offset + i ] = p[ index + i ] & 0xff;
+		}
+		else if ( plane instanceof short[] )
+		{
+			final short[] p = (short[])plane;
+			for ( int i = 0; i < length; ++i )
+				row[ offset + i ] = p[ index + i ] & 0xffff;
+		}
+		else
+		{
+			System.arraycopy( (float[])plane, index, row, offset, length );
+		}
+	}
+
+	/**
+	 * Writes a row of float values, rounding them if the plane is of integer type
+	 *
+	 * @param row - the source array
+	 * @param offset - the first index in the source array
+	 * @param plane - byte[], short[] or float[]
+	 * @param index - the index of the first pixel in the plane
+	 * @param length - the number of pixels
+	 */
+	public static void write( final float[] row, final int offset, final Object plane, final int index, final int length )
+	{
+		if ( plane instanceof byte[] )
+		{
+			final byte[] p = (byte[])plane;
+			for ( int i = 0; i < length; ++i )
+				p[ index + i ] = (byte)round( row[ offset + i ] );
+		}
+		else if ( plane instanceof short[] )
+		{
+			final short[] p = (short[])plane;
+			for ( int i = 0; i < length; ++i )
+				p[ index + i ] = (short)round( row[ offset + i ] );
+		}
+		else
+		{
+			System.arraycopy( row, offset, (float[])plane, index, length );
+		}
+	}
+
+	/**
+	 * Copies a row of pixels from one plane to another, converting the type if necessary
+	 *
+	 * @param source - byte[], short[] or float[]
+	 * @param sourceIndex - the index of the first pixel in the source plane
+	 * @param target - byte[], short[] or float[]
+	 * @param targetIndex - the index of the first pixel in the target plane
+	 * @param length - the number of pixels
+	 */
+	public static void copy( final Object source, final int sourceIndex, final Object target, final int targetIndex, final int length )
+	{
+		if ( source.getClass() == target.getClass() )
+		{
+			System.arraycopy( source, sourceIndex, target, targetIndex, length );
+		}
+		else if ( target instanceof float[] )
+		{
+			read( source, sourceIndex, (float[])target, targetIndex, length );
+		}
+		else if ( source instanceof float[] )
+		{
+			write( (float[])source, sourceIndex, target, targetIndex, length );
+		}
+		else if ( source instanceof byte[] )
+		{
+			// byte to short
+			final byte[] s = (byte[])source;
+			final short[] t = (short[])target;
+			for ( int i = 0; i < length; ++i )
+				t[ targetIndex + i ] = (short)( s[ sourceIndex + i ] & 0xff );
+		}
+		else
+		{
+			// short to byte
+			final short[] s = (short[])source;
+			final byte[] t = (byte[])target;
+			for ( int i = 0; i < length; ++i )
+				t[ targetIndex + i ] = (byte)( s[ sourceIndex + i ] & 0xffff );
+		}
+	}
+
+	/**
+	 * Creates a primitive array that can hold pixels of a certain type
+	 *
+	 * @param type - {@link UnsignedByteType}, {@link UnsignedShortType} or anything else (float)
+	 * @param length - the number of pixels
+	 * @return - byte[], short[] or float[]
+	 */
+	public static Object createArray( final RealType< ? > type, final int length )
+	{
+		if ( type instanceof UnsignedByteType )
+			return new byte[ length ];
+		else if ( type instanceof UnsignedShortType )
+			return new short[ length ];
+		else
+			return new float[ length ];
+	}
+
+	/**
+	 * @param type - {@link UnsignedByteType}, {@link UnsignedShortType} or anything else (float)
+	 * @return - the number of bytes of one pixel in the array created by {@link #createArray(RealType, int)}
+	 */
+	public static int getBytesPerPixel( final RealType< ? > type )
+	{
+		if ( type instanceof UnsignedByteType )
+			return 1;
+		else if ( type instanceof UnsignedShortType )
+			return 2;
+		else
+			return 4;
+	}
+
+	/**
+	 * Rounds like the imglib integer types do when calling setReal()
+	 *
+	 * @param value - the value
+	 * @return - the closest integer
+	 */
+	public static int round( final float value )
+	{
+		return value > 0 ? (int)( value + 0.5f ) : (int)( value - 0.5f );
+	}
+}
@@ -0,0 +1,286 @@
+package mpicbg.stitching.fusion;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import mpicbg.imglib.type.numeric.RealType;
+import mpicbg.models.InvertibleBoundable;
+import mpicbg.models.NoninvertibleModelException;
+
+/**
+ * Fuses single rows of the output image for arbitrary models using the samplers of the input images.
+ * Each tile is transformed and sampled along the row and handed to the {@link RowPixelFusion} as runs of
+ * values. One instance per thread, it keeps all temporary arrays.
+ *
+ * Several channels can be fused at once, then every position is transformed and tested only once and all
+ * channels are sampled there. For blending the weights are also computed only once and shared.
+ */
+public class RowFusion
+{
+	final int numDimensions;
+	final int numChannels;
+	final float[] offset;
+	final List< InvertibleBoundable > transform;
+	final RowPixelFusion[] fusion;
+
+	// the weights are shared by all channels
+	final BlendingPixelFusion[] blending;
+	double[] weights = new double[ 0 ];
+
+	// the maximal local coordinate of each image
+	final int[][] max;
+
+	// the samplers of each channel
+	final ArrayList< ArrayList< RealSampler > > in;
+
+	final float[] tmp, runStart, step;
+	float[][] values = new float[ 0 ][ 0 ];
+	final float[][] singleRow = new float[ 1 ][];
+
+	/**
+	 * @param input - all input images, the ones that are never used can be null
+	 * @param transform - the transformations of the input images
+	 * @param offset - the offset of the output image
+	 * @param fusion - the fusion, will be used by this instance only
+	 */
+	public RowFusion( final List< ? extends ImageInterpolation< ? extends RealType< ? > > > input, final List< InvertibleBoundable > transform, final float[] offset, final PixelFusion fusion )
+	{
+		this( wrap( input ), transform, offset, fusion );
+	}
+
+	/**
+	 * @param input - all input images of all channels input[ channel ][ image ], the ones that are never used can be null
+	 * @param transform - the transformations of the input images, the same for all channels
+	 * @param offset - the offset of the output image
+	 * @param fusion - the fusion of the first channel, will be used by this instance only (the other channels use copies)
+	 */
+	public RowFusion( final ArrayList< ? extends List< ? extends ImageInterpolation< ? extends RealType< ? > > > > input, final List< InvertibleBoundable > transform,
+			final float[] offset, final PixelFusion fusion )
+	{
+		final List< ? extends ImageInterpolation< ? extends RealType< ? > > > first = input.get( 0 );
+		final int numImages = first.size();
+
+		this.numDimensions = offset.length;
+		this.numChannels = input.size();
+		this.offset = offset;
+		this.transform = transform;
+
+		this.fusion = new RowPixelFusion[ numChannels ];
+		for ( int c = 0; c < numChannels; ++c )
+			this.fusion[ c ] = PixelFusionRowAdapter.wrap( c == 0 ? fusion : fusion.copy() );
+
+		if ( numChannels > 1 && fusion instanceof BlendingPixelFusion )
+		{
+			this.blending = new BlendingPixelFusion[ numChannels ];
+			for ( int c = 0; c < numChannels; ++c )
+				blending[ c ] = (BlendingPixelFusion)this.fusion[ c ];
+		}
+		else
+		{
+			this.blending = null;
+		}
+
+		// images that are not needed can be null, all channels have the same size
+		this.max = new int[ numImages ][ numDimensions ];
+		for ( int i = 0; i < numImages; ++i )
+			if ( first.get( i ) != null )
+				for ( int d = 0; d < numDimensions; ++d )
+					max[ i ][ d ] = first.get( i ).getImage().getDimension( d ) - 1;
+
+		this.in = new ArrayList< ArrayList< RealSampler > >();
+		for ( final List< ? extends ImageInterpolation< ? extends RealType< ? > > > channel : input )
+		{
+			final ArrayList< RealSampler > samplers = new ArrayList< RealSampler >();
+
+			for ( int i = 0; i < numImages; ++i )
+				samplers.add( channel.get( i ) == null ? null : channel.get( i ).createSampler() );
+
+			in.add( samplers );
+		}
+
+		this.tmp = new float[ numDimensions ];
+		this.runStart = new float[ numDimensions ];
+		this.step = new float[ numDimensions ];
+	}
+
+	/**
+	 * @return - the number of channels that are fused at once
+	 */
+	public int getNumChannels() { return numChannels; }
+
+	/**
+	 * Fuses one row of the output
+	 *
+	 * @param pos - the position of the first pixel of the row in the output image
+	 * @param length - the number of pixels of the row
+	 * @param tiles - the ids of all tiles that might contribute to this row
+	 * @param row - the fused values, row[ x ] for x = 0 ... length-1
+	 * @throws NoninvertibleModelException
+	 */
+	public void fuseRow( final int[] pos, final int length, final int[] tiles, final float[] row ) throws NoninvertibleModelException
+	{
+		singleRow[ 0 ] = row;
+		fuseRow( pos, length, tiles, singleRow );
+	}
+
+	/**
+	 * Fuses one row of the output for all channels
+	 *
+	 * @param pos - the position of the first pixel of the row in the output image
+	 * @param length - the number of pixels of the row
+	 * @param tiles - the ids of all tiles that might contribute to this row
+	 * @param rows - the fused values, rows[ channel ][ x ] for x = 0 ... length-1
+	 * @throws NoninvertibleModelException
+	 */
+	public void fuseRow( final int[] pos, final int length, final int[] tiles, final float[][] rows ) throws NoninvertibleModelException
+	{
+		// only one tile, no need to fuse anything
+		if ( tiles.length == 1 )
+		{
+			copyRow( pos, length, tiles[ 0 ], rows );
+			return;
+		}
+
+		if ( values.length < numChannels || values[ 0 ].length < length )
+		{
+			values = new float[ numChannels ][ length ];
+
+			if ( blending != null )
+				weights = new double[ length ];
+		}
+
+		for ( int c = 0; c < numChannels; ++c )
+			fusion[ c ].clearRow( length );
+
+		for ( final int i : tiles )
+		{
+			final InvertibleBoundable model = transform.get( i );
+
+			// how the local position changes along the row
+			setPosition( tmp, pos, 1 );
+			model.applyInverseInPlace( tmp );
+			setPosition( step, pos, 0 );
+			model.applyInverseInPlace( step );
+
+			for ( int d = 0; d < numDimensions; ++d )
+				step[ d ] = tmp[ d ] - step[ d ];
+
+			// collect runs of pixels that are inside the image
+			int start = -1;
+
+A:			for ( int x = 0; x < length; ++x )
+			{
+				setPosition( tmp, pos, x );
+				model.applyInverseInPlace( tmp );
+
+				// test if inside
+				for ( int d = 0; d < numDimensions; ++d )
+					if ( tmp[ d ] < 0 || tmp[ d ] > max[ i ][ d ] )
+					{
+						if ( start >= 0 )
+						{
+							addValues( start, x - start, i );
+							start = -1;
+						}
+
+						continue A;
+					}
+
+				if ( start < 0 )
+				{
+					start = x;
+					System.arraycopy( tmp, 0, runStart, 0, numDimensions );
+				}
+
+				for ( int c = 0; c < numChannels; ++c )
+					values[ c ][ x ] = in.get( c ).get( i ).get( tmp );
+			}
+
+			if ( start >= 0 )
+				addValues( start, length - start, i );
+		}
+
+		for ( int c = 0; c < numChannels; ++c )
+			fusion[ c ].getValues( rows[ c ] );
+	}
+
+	protected void addValues( final int start, final int length, final int imageId )
+	{
+		if ( blending != null )
+		{
+			blending[ 0 ].computeWeights( start, length, imageId, runStart, step, weights );
+
+			for ( int c = 0; c < numChannels; ++c )
+				blending[ c ].addValues( values[ c ], start, length, weights );
+		}
+		else
+		{
+			for ( int c = 0; c < numChannels; ++c )
+				fusion[ c ].addValues( values[ c ], start, length, imageId, runStart, step );
+		}
+	}
+
+	/**
+	 * Samples one row of a single tile, pixels outside of the tile are 0
+	 *
+	 * @param pos - the position of the first pixel of the row in the output image
+	 * @param length - the number of pixels of the row
+	 * @param tile - the id of the tile
+	 * @param row - the values, row[ x ] for x = 0 ... length-1
+	 * @throws NoninvertibleModelException
+	 */
+	public void copyRow( final int[] pos, final int length, final int tile, final float[] row ) throws NoninvertibleModelException
+	{
+		singleRow[ 0 ] = row;
+		copyRow( pos, length, tile, singleRow );
+	}
+
+	/**
+	 * Samples one row of a single tile for all channels, pixels outside of the tile are 0
+	 *
+	 * @param pos - the position of the first pixel of the row in the output image
+	 * @param length - the number of pixels of the row
+	 * @param tile - the id of the tile
+	 * @param rows - the values, rows[ channel ][ x ] for x = 0 ... length-1
+	 * @throws NoninvertibleModelException
+	 */
+	public void copyRow( final int[] pos, final int length, final int tile, final float[][] rows ) throws NoninvertibleModelException
+	{
+		final InvertibleBoundable model = transform.get( tile );
+		final int[] m = max[ tile ];
+
+A:		for ( int x = 0; x < length; ++x )
+		{
+			setPosition( tmp, pos, x );
+			model.applyInverseInPlace( tmp );
+
+			for ( int d = 0; d < numDimensions; ++d )
+				if ( tmp[ d ] < 0 || tmp[ d ] > m[ d ] )
+				{
+					for ( int c = 0; c < numChannels; ++c )
+						rows[ c ][ x ] = 0;
+
+					continue A;
+				}
+
+			for ( int c = 0; c < numChannels; ++c )
+				rows[ c ][ x ] = in.get( c ).get( tile ).get( tmp );
+		}
+	}
+
+	protected void setPosition( final float[] position, final int[] pos, final int x )
+	{
+		position[ 0 ] = pos[ 0 ] + x + offset[ 0 ];
+
+		for ( int d = 1; d < numDimensions; ++d )
+			position[ d ] = pos[ d ] + offset[ d ];
+	}
+
+	protected static ArrayList< List< ? extends ImageInterpolation< ? extends RealType< ? > > > > wrap( final List< ? extends ImageInterpolation< ? extends RealType< ? > > > input )
+	{
+		final ArrayList< List< ? extends ImageInterpolation< ? extends RealType< ? > > > > channels = new ArrayList< List< ? extends ImageInterpolation< ? extends RealType< ? > > > >();
+		channels.add( input );
+
+		return channels;
+	}
+}
@@ -0,0 +1,144 @@
+package mpicbg.stitching.fusion;
+
+/**
+ * The arithmetic of the {@link RowPixelFusion}s on whole rows. The loops have no branches and no calls except
+ * Math.max/min, so that the JIT compiler can turn them into SIMD instructions (SSE/AVX/NEON). Sums are accumulated
+ * in double like the per-pixel fusions, so both give the same result. Pixels without a value are marked by a
+ * sentinel (0 weight, -/+infinity) instead of a separate boolean[].
+ */
+public class RowKernels
+{
+	/**
+	 * sum[ x ] += values[ x ], count[ x ] += 1
+	 */
+	public static void addAndCount( final double[] sum, final double[] count, final float[] values, final int start, final int length )
+	{
+		final int end = start + length;
+
+		for ( int x = start; x < end; ++x )
+		{
+			sum[ x ] += values[ x ];
+			count[ x ] += 1;
+		}
+	}
+
+	/**
+	 * sum[ x ] += values[ x ], count[ x ] += 1 if values[ x ] != 0
+	 */
+	public static void addAndCountNonZero( final double[] sum, final double[] count, final float[] values, final int start, final int length )
+	{
+		final int end = start + length;
+
+		for ( int x = start; x < end; ++x )
+		{
+			final float v = values[ x ];
+
+			// zeros add nothing to the sum
+			sum[ x ] += v;
+			count[ x ] += v != 0 ? 1 : 0;
+		}
+	}
+
+	/**
+	 * sum[ x ] += values[ x ] * weights[ x ], weightSum[ x ] += weights[ x ]
+	 */
+	public static void addWeighted( final double[] sum, final double[] weightSum, final float[] values, final double[] weights, final int start, final int length )
+	{
+		final int end = start + length;
+
+		for ( int x = start; x < end; ++x )
+		{
+			sum[ x ] += values[ x ] * weights[ x ];
+			weightSum[ x ] += weights[ x ];
+		}
+	}
+
+	/**
+	 * sum[ x ] += values[ x ] * weights[ x ], weightSum[ x ] += weights[ x ] if values[ x ] != 0
+	 */
+	public static void addWeightedNonZero( final double[] sum, final double[] weightSum, final float[] values, final double[] weights, final int start, final int length )
+	{
+		final int end = start + length;
+
+		for ( int x = start; x < end; ++x )
+		{
+			final float v = values[ x ];
+
+			sum[ x ] += v * weights[ x ];
+			weightSum[ x ] += v != 0 ? weights[ x ] : 0;
+		}
+	}
+
+	/**
+	 * row[ x ] = sum[ x ] / count[ x ], or 0 if count[ x ] is 0 (then the sum is 0 as well)
+	 *
+	 * @param minCount - the smallest count that is not 0 (1 for counts, the minimal weight for weight sums)
+	 */
+	public static void divide( final double[] sum, final double[] count, final float[] row, final int length, final double minCount )
+	{
+		for ( int x = 0; x < length; ++x )
+			row[ x ] = (float)( sum[ x ] / Math.max( count[ x ], minCount ) );
+	}
+
+	/**
+	 * max[ x ] = max( max[ x ], values[ x ] ), the row has to be initialized with -infinity
+	 */
+	public static void max( final float[] max, final float[] values, final int start, final int length )
+	{
+		final int end = start + length;
+
+		for ( int x = start; x < end; ++x )
+			max[ x ] = Math.max( max[ x ], values[ x ] );
+	}
+
+	/**
+	 * max[ x ] = max( max[ x ], values[ x ] ) if values[ x ] != 0, the row has to be initialized with -infinity
+	 */
+	public static void maxNonZero( final float[] max, final float[] values, final int start, final int length )
+	{
+		final int end = start + length;
+
+		for ( int x = start; x < end; ++x )
+		{
+			final float v = values[ x ];
+			max[ x ] = Math.max( max[ x ], v != 0 ? v : Float.NEGATIVE_INFINITY );
+		}
+	}
+
+	/**
+	 * min[ x ] = min( min[ x ], values[ x ] ), the row has to be initialized with +infinity
+	 */
+	public static void min( final float[] min, final float[] values, final int start, final int length )
+	{
+		final int end = start + length;
+
+		for ( int x = start; x < end; ++x )
+			min[ x ] = Math.min( min[ x ], values[ x ] );
+	}
+
+	/**
+	 * min[ x ] = min( min[ x ], values[ x ] ) if values[ x ] != 0, the row has to be initialized with +infinity
+	 */
+	public static void minNonZero( final float[] min, final float[] values, final int start, final int length )
+	{
+		final int end = start + length;
+
+		for ( int x = start; x < end; ++x )
+		{
+			final float v = values[ x ];
+			min[ x ] = Math.min( min[ x ], v != 0 ? v : Float.POSITIVE_INFINITY );
+		}
+	}
+
+	/**
+	 * row[ x ] = values[ x ], or 0 where it is still the sentinel (no image contributed)
+	 */
+	public static void copyOrZero( final float[] values, final float[] row, final int length, final float sentinel )
+	{
+		for ( int x = 0; x < length; ++x )
+		{
+			final float v = values[ x ];
+			row[ x ] = v != sentinel ? v : 0;
+		}
+	}
+}
@@ -0,0 +1,35 @@
+package mpicbg.stitching.fusion;
+
+/**
+ * A {@link PixelFusion} that can fuse a whole output row at once. Instead of being called for every pixel and
+ * every image, it receives runs of consecutive values from each image and computes all output values of the row
+ * in one go, so that the inner loops are simple array code.
+ */
+public interface RowPixelFusion extends PixelFusion
+{
+	/**
+	 * reset for the next output row
+	 * 
+	 * @param length - the number of pixels of the row
+	 */
+	void clearRow( int length );
+	
+	/**
+	 * add a run of values from one input image for the current output row
+	 * 
+	 * @param values - the image intensities, values[ x ] belongs to pixel x of the output row (only valid during this call)
+	 * @param start - the first pixel of the run
+	 * @param length - the number of pixels of the run
+	 * @param imageId - from which input image as defined by the id
+	 * @param localPosition - the position of the first value of the run inside the input image in local coordinates
+	 * @param localStep - how much the local position changes from one pixel of the run to the next
+	 */
+	void addValues( float[] values, int start, int length, int imageId, float[] localPosition, float[] localStep );
+	
+	/**
+	 * return the result for all pixels of the current row
+	 * 
+	 * @param row - the output values, row[ x ] for all pixels of the row
+	 */
+	void getValues( float[] row );
+}
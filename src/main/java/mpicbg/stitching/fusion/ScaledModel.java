@@ -0,0 +1,166 @@
+package mpicbg.stitching.fusion;
+
+import java.util.ArrayList;
+
+import mpicbg.models.Boundable;
+import mpicbg.models.InvertibleBoundable;
+import mpicbg.models.InvertibleCoordinateTransform;
+import mpicbg.models.NoninvertibleModelException;
+import mpicbg.models.TranslationModel2D;
+import mpicbg.models.TranslationModel3D;
+
+/**
+ * A transformation between images that are downsampled by integer factors. Pixel p of a downsampled tile covers
+ * the pixels p*s ... p*s + s - 1 of the tile, its center is p*s + (s-1)/2. The same holds for the downsampled
+ * output, so the model maps p to ( model( p*s + (s-1)/2 ) - (s-1)/2 ) / s. For translations this is simply a
+ * translation by t/s, see {@link #scale(InvertibleBoundable, int[])}.
+ */
+public class ScaledModel implements InvertibleBoundable
+{
+	final InvertibleCoordinateTransform model;
+	final int[] factors;
+
+	/**
+	 * @param model - the transformation at full resolution
+	 * @param factors - the downsampling in each dimension
+	 */
+	public ScaledModel( final InvertibleCoordinateTransform model, final int[] factors )
+	{
+		this.model = model;
+		this.factors = factors.clone();
+	}
+
+	/**
+	 * @param model - the transformation at full resolution
+	 * @param factors - the downsampling in each dimension
+	 * @return - the transformation of the downsampled images, a translation if model is one
+	 */
+	public static InvertibleBoundable scale( final InvertibleBoundable model, final int[] factors )
+	{
+		if ( model instanceof TranslationModel2D || model instanceof TranslationModel3D )
+		{
+			final float[] t = new float[ factors.length ];
+			model.applyInPlace( t );
+
+			if ( factors.length == 2 )
+			{
+				final TranslationModel2D scaled = new TranslationModel2D();
+				scaled.set( t[ 0 ] / factors[ 0 ], t[ 1 ] / factors[ 1 ] );
+				return scaled;
+			}
+			else
+			{
+				final TranslationModel3D scaled = new TranslationModel3D();
+				scaled.set( t[ 0 ] / factors[ 0 ], t[ 1 ] / factors[ 1 ], t[ 2 ] / factors[ 2 ] );
+				return scaled;
+			}
+		}
+
+		return new ScaledModel( model, factors );
+	}
+
+	/**
+	 * @param models - the transformations at full resolution
+	 * @param factors - the downsampling in each dimension
+	 * @return - the transformations of the downsampled images
+	 */
+	public static ArrayList< InvertibleBoundable > scale( final ArrayList< InvertibleBoundable > models, final int[] factors )
+	{
+		final ArrayList< InvertibleBoundable > scaled = new ArrayList< InvertibleBoundable >();
+
+		for ( final InvertibleBoundable model : models )
+			scaled.add( scale( model, factors ) );
+
+		return scaled;
+	}
+
+	protected void toFullResolution( final float[] location )
+	{
+		for ( int d = 0; d < location.length; ++d )
+			location[ d ] = location[ d ] * factors[ d ] + ( factors[ d ] - 1 ) / 2.0f;
+	}
+
+	protected void toDownsampled( final float[] location )
+	{
+		for ( int d = 0; d < location.length; ++d )
+			location[ d ] = ( location[ d ] - ( factors[ d ] - 1 ) / 2.0f ) / factors[ d ];
+	}
+
+	@Override
+	public float[] apply( final float[] location )
+	{
+		final float[] transformed = location.clone();
+		applyInPlace( transformed );
+		return transformed;
+	}
+
+	@Override
+	public void applyInPlace( final float[] location )
+	{
+		toFullResolution( location );
+		model.applyInPlace( location );
+		toDownsampled( location );
+	}
+
+	@Override
+	public float[] applyInverse( final float[] point ) throws NoninvertibleModelException
+	{
+		final float[] transformed = point.clone();
+		applyInverseInPlace( transformed );
+		return transformed;
+	}
+
+	@Override
+	public void applyInverseInPlace( final float[] point ) throws NoninvertibleModelException
+	{
+		toFullResolution( point );
+		model.applyInverseInPlace( point );
+		toDownsampled( point );
+	}
+
+	@Override
+	public ScaledModel createInverse()
+	{
+		return new ScaledModel( model.createInverse(), factors );
+	}
+
+	@Override
+	public void estimateBounds( final float[] min, final float[] max )
+	{
+		if ( model instanceof Boundable )
+		{
+			toFullResolution( min );
+			toFullResolution( max );
+			( (Boundable)model ).estimateBounds( min, max );
+			toDownsampled( min );
+			toDownsampled( max );
+			return;
+		}
+
+		// transform all corners of the box
+		final int n = min.length;
+		final float[] lower = min.clone();
+		final float[] upper = max.clone();
+		final float[] corner = new float[ n ];
+
+		for ( int d = 0; d < n; ++d )
+		{
+			min[ d ] = Float.MAX_VALUE;
+			max[ d ] = -Float.MAX_VALUE;
+		}
+
+		for ( int i = 0; i < ( 1 << n ); ++i )
+		{
+			for ( int d = 0; d < n; ++d )
+				corner[ d ] = ( i & ( 1 << d ) ) == 0 ? lower[ d ] : upper[ d ];
+
+			applyInPlace( corner );
+
+			for ( int d = 0; d < n; ++d )
+			{
+				min[ d ] = Math.min( min[ d ], corner[ d ] );
+				max[ d ] = Math.max( max[ d ], corner[ d ] );
+			}
+		}
+	}
+}
@@ -0,0 +1,240 @@
+package mpicbg.stitching.fusion;
+
+import ij.IJ;
+import ij.ImagePlus;
+
+import java.util.ArrayList;
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import mpicbg.imglib.cursor.LocalizableByDimCursor;
+import mpicbg.imglib.image.Image;
+import mpicbg.imglib.multithreading.Chunk;
+import mpicbg.imglib.multithreading.SimpleMultiThreading;
+import mpicbg.imglib.type.numeric.RealType;
+import mpicbg.models.InvertibleBoundable;
+import mpicbg.models.NoninvertibleModelException;
+
+/**
+ * Tile-major fusion. Instead of looking up all tiles for every output pixel, the tiles are processed one
+ * after the other and each one adds its values into float buffers of the size of the output image (the sum
+ * and the weight, or the current value for max and min). At the end the buffers are normalized and written
+ * into the output. Only one tile has to be loaded at a time and it is read in one go, but the buffers need
+ * two floats per output pixel. Works for blending, average, max and min, the median needs all values at once.
+ */
+public class ScatterFusion
+{
+	/**
+	 * @param fusionType - 0 == blending, 1 == average, 2 == median, 3 == max, 4 == min
+	 * @return - true if the fusion method can be computed tile by tile
+	 */
+	public static boolean isSupported( final int fusionType )
+	{
+		return fusionType == 0 || fusionType == 1 || fusionType == 3 || fusionType == 4;
+	}
+
+	/**
+	 * Fuse one slice/volume (one channel)
+	 *
+	 * @param output - the fused image
+	 * @param images - all input images, one tile after the other is taken from them
+	 * @param c - the channel
+	 * @param t - the timepoint
+	 * @param offset - the offset of the output image
+	 * @param transform - the transformations of the input images
+	 * @param fusionType - 0 == blending, 1 == average, 3 == max, 4 == min
+	 * @param ignoreZeroValues - do not use pixels that are 0
+	 * @param interpolate - use linear interpolation (subpixel resolution) instead of nearest neighbor
+	 */
+	public static < T extends RealType< T > > void fuse( final Image< T > output, final ArrayList< ImagePlus > images, final int c, final int t, final float[] offset,
+			final ArrayList< InvertibleBoundable > transform, final int fusionType, final boolean ignoreZeroValues, final boolean interpolate )
+	{
+		final int numDimensions = output.getNumDimensions();
+		final int numImages = images.size();
+		final int[] size = output.getDimensions();
+		final int numPlanes = numDimensions == 3 ? size[ 2 ] : 1;
+		final int planeSize = size[ 0 ] * size[ 1 ];
+
+		// where are the tiles in the output image
+		final int[][] imgSizes = Fusion.getImageSizes( images, numDimensions );
+		final TileIndex index = new TileIndex( size, offset, imgSizes, transform, TileIndex.getDefaultBlockSize( numDimensions ) );
+		final BlendingPixelFusion blending = fusionType == 0 ? new BlendingPixelFusion( imgSizes ) : null;
+
+		// the sum of all values and weights, for max and min the value and if it is set at all
+		final float[][] values = new float[ numPlanes ][ planeSize ];
+		final float[][] weights = new float[ numPlanes ][ planeSize ];
+
+		final int[] min = new int[ numDimensions ];
+		final int[] max = new int[ numDimensions ];
+		final FlatFieldCorrection[] corrections = Fusion.getCorrections( images, c );
+
+		for ( int i = 0; i < numImages; ++i )
+		{
+			IJ.showProgress( (double)i / (double)numImages );
+
+			if ( !index.getTileBounds( i, min, max ) )
+				continue;
+
+			// load the tile, add it and forget about it
+			final ImageInterpolation< ? extends RealType< ? > > tile;
+
+			if ( interpolate )
+				tile = Fusion.interpolateImage( images.get( i ), c, t, true, corrections[ i ] );
+			else
+				tile = Fusion.wrapImage( images.get( i ), c, t, corrections[ i ] );
+
+			final boolean success = addTile( tile, i, transform.get( i ), offset, min, max, size, values, weights, fusionType, ignoreZeroValues, blending );
+
+			if ( !success )
+			{
+				IJ.log( "Cannot invert model, qutting." );
+				return;
+			}
+		}
+
+		// normalize and write the result
+		final Object[] outPlanes = RowAccess.getPlanes( output );
+		final LocalizableByDimCursor< T > out = outPlanes == null ? output.createLocalizableByDimCursor() : null;
+		final int[] pos = new int[ numDimensions ];
+		final float[] row = new float[ size[ 0 ] ];
+
+		for ( int z = 0; z < numPlanes; ++z )
+		{
+			final float[] v = values[ z ];
+			final float[] w = weights[ z ];
+
+			// sum / weight for blending and average, max and min are 0 where nothing is set
+			if ( fusionType == 0 || fusionType == 1 )
+				for ( int j = 0; j < planeSize; ++j )
+					v[ j ] = w[ j ] == 0 ? 0 : v[ j ] / w[ j ];
+
+			if ( outPlanes != null )
+			{
+				RowAccess.write( v, 0, outPlanes[ z ], 0, planeSize );
+			}
+			else
+			{
+				if ( numDimensions == 3 )
+					pos[ 2 ] = z;
+
+				for ( int y = 0; y < size[ 1 ]; ++y )
+				{
+					pos[ 1 ] = y;
+					System.arraycopy( v, y * size[ 0 ], row, 0, size[ 0 ] );
+					Fusion.writeRow( row, size[ 0 ], pos, out );
+				}
+			}
+
+			values[ z ] = weights[ z ] = null;
+		}
+	}
+
+	/**
+	 * Adds all values of one tile to the buffers, multithreaded over the rows of its bounding box
+	 *
+	 * @return - false if the model cannot be inverted
+	 */
+	protected static boolean addTile( final ImageInterpolation< ? extends RealType< ? > > tile, final int imageId, final InvertibleBoundable model, final float[] offset,
+			final int[] min, final int[] max, final int[] size, final float[][] values, final float[][] weights, final int fusionType, final boolean ignoreZeroValues,
+			final BlendingPixelFusion blending )
+	{
+		final int numDimensions = min.length;
+		final int height = max[ 1 ] - min[ 1 ] + 1;
+		final int numRows = numDimensions == 3 ? height * ( max[ 2 ] - min[ 2 ] + 1 ) : height;
+
+		final int[] imgMax = tile.getImage().getDimensions();
+		for ( int d = 0; d < numDimensions; ++d )
+			--imgMax[ d ];
+
+		final AtomicInteger ai = new AtomicInteger( 0 );
+		final AtomicInteger failed = new AtomicInteger( 0 );
+		final Thread[] threads = Fusion.newThreads();
+
+		final Vector<Chunk> threadChunks = SimpleMultiThreading.divideIntoChunks( numRows, threads.length );
+
+		for (int ithread = 0; ithread < threads.length; ++ithread)
+			threads[ithread] = new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					// Thread ID
+					final int myNumber = ai.getAndIncrement();
+
+					// get chunk of rows to process
+					final Chunk myChunk = threadChunks.get( myNumber );
+					final int startRow = (int)myChunk.getStartPosition();
+					final int loopSize = (int)myChunk.getLoopSize();
+
+					final RealSampler in = tile.createSampler();
+					final float[] tmp = new float[ numDimensions ];
+
+					try
+					{
+						for ( int r = startRow; r < startRow + loopSize; ++r )
+						{
+							// another thread failed
+							if ( failed.get() > 0 )
+								return;
+
+							final int y = min[ 1 ] + r % height;
+							final int z = numDimensions == 3 ? min[ 2 ] + r / height : 0;
+
+							final float[] v = values[ z ];
+							final float[] w = weights[ z ];
+							final int rowIndex = y * size[ 0 ];
+
+A:							for ( int x = min[ 0 ]; x <= max[ 0 ]; ++x )
+							{
+								tmp[ 0 ] = x + offset[ 0 ];
+								tmp[ 1 ] = y + offset[ 1 ];
+								if ( numDimensions == 3 )
+									tmp[ 2 ] = z + offset[ 2 ];
+
+								model.applyInverseInPlace( tmp );
+
+								// test if inside
+								for ( int d = 0; d < numDimensions; ++d )
+									if ( tmp[ d ] < 0 || tmp[ d ] > imgMax[ d ] )
+										continue A;
+
+								final float value = in.get( tmp );
+
+								if ( ignoreZeroValues && value == 0 )
+									continue;
+
+								final int j = rowIndex + x;
+
+								if ( fusionType == 0 )
+								{
+									// we are always inside the image, so we do not want 0.0
+									final float weight = (float)Math.max( 0.00001, blending.computeWeight( tmp, imageId ) );
+
+									v[ j ] += value * weight;
+									w[ j ] += weight;
+								}
+								else if ( fusionType == 1 )
+								{
+									v[ j ] += value;
+									++w[ j ];
+								}
+								else if ( w[ j ] == 0 || ( fusionType == 3 ? value > v[ j ] : value < v[ j ] ) )
+								{
+									v[ j ] = value;
+									w[ j ] = 1;
+								}
+							}
+						}
+					}
+					catch ( NoninvertibleModelException e )
+					{
+						failed.incrementAndGet();
+					}
+				}
+			});
+
+		SimpleMultiThreading.startAndJoin( threads );
+
+		return failed.get() == 0;
+	}
+}
@@ -0,0 +1,298 @@
+package mpicbg.stitching.fusion;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import mpicbg.models.InvertibleBoundable;
+
+/**
+ * Spatial index for the fusion. The output image is divided into blocks and for each block we remember
+ * which tiles can contribute to it, estimated from the bounding box of each transformed tile. Like this
+ * the fusion only has to look at the few tiles that actually cover a certain block instead of all of them.
+ */
+public class TileIndex
+{
+	/**
+	 * The size of the blocks in 2d and 3d
+	 */
+	public static int[] blockSize2d = new int[] { 128, 128 };
+	public static int[] blockSize3d = new int[] { 64, 64, 16 };
+
+	final int numDimensions;
+	final int numTiles;
+	final int[] size, blockSize, numBlocksPerDim;
+	final int numBlocks;
+
+	// the bounding box of each tile in output coordinates (inclusive), tileMin[ i ][ 0 ] > tileMax[ i ][ 0 ] if it is not visible
+	final int[][] tileMin, tileMax;
+
+	// for each block the ids of all tiles that overlap with it
+	final int[][] blockTiles;
+
+	/**
+	 * Builds the index for a list of input images
+	 *
+	 * @param size - the size of the output image
+	 * @param offset - the offset of the output image as computed by {@link Fusion#estimateBounds(float[], int[], int[][], ArrayList, int)}
+	 * @param input - the input images (only the first input.size() models will be used)
+	 * @param models - the transformations of the input images
+	 */
+	public TileIndex( final int[] size, final float[] offset, final List< ? extends ImageInterpolation< ? > > input, final List< ? extends InvertibleBoundable > models )
+	{
+		this( size, offset, getImageSizes( input ), models, getDefaultBlockSize( size.length ) );
+	}
+
+	/**
+	 * Builds the index
+	 *
+	 * @param size - the size of the output image
+	 * @param offset - the offset of the output image as computed by {@link Fusion#estimateBounds(float[], int[], int[][], ArrayList, int)}
+	 * @param imgSizes - the dimensions of all input images imgSizes[ image ][ x, y, (z) ]
+	 * @param models - the transformations of the input images (only the first imgSizes.length models will be used)
+	 * @param blockSize - the size of the blocks
+	 */
+	public TileIndex( final int[] size, final float[] offset, final int[][] imgSizes, final List< ? extends InvertibleBoundable > models, final int[] blockSize )
+	{
+		this.numDimensions = size.length;
+		this.numTiles = imgSizes.length;
+		this.size = size.clone();
+		this.blockSize = blockSize.clone();
+		this.numBlocksPerDim = new int[ numDimensions ];
+
+		int n = 1;
+		for ( int d = 0; d < numDimensions; ++d )
+		{
+			numBlocksPerDim[ d ] = Math.max( 1, ( size[ d ] + blockSize[ d ] - 1 ) / blockSize[ d ] );
+			n *= numBlocksPerDim[ d ];
+		}
+		this.numBlocks = n;
+
+		// estimate the bounding box of each tile in the output image
+		this.tileMin = new int[ numTiles ][ numDimensions ];
+		this.tileMax = new int[ numTiles ][ numDimensions ];
+
+		for ( int i = 0; i < numTiles; ++i )
+		{
+			final float[] min = new float[ numDimensions ];
+			final float[] max = new float[ numDimensions ];
+
+			for ( int d = 0; d < numDimensions; ++d )
+				max[ d ] = imgSizes[ i ][ d ];
+
+			models.get( i ).estimateBounds( min, max );
+
+			for ( int d = 0; d < numDimensions; ++d )
+			{
+				// the image might be rotated so that min is actually max, and we add one pixel
+				// on each side so that rounding errors of the transformation do not matter
+				final float lo = Math.min( min[ d ], max[ d ] ) - offset[ d ];
+				final float hi = Math.max( min[ d ], max[ d ] ) - offset[ d ];
+
+				tileMin[ i ][ d ] = Math.max( 0, (int)Math.floor( lo ) - 1 );
+				tileMax[ i ][ d ] = Math.min( size[ d ] - 1, (int)Math.ceil( hi ) + 1 );
+			}
+		}
+
+		// count how many tiles overlap with each block
+		final int[] count = new int[ numBlocks ];
+		final int[] blockMin = new int[ numDimensions ];
+		final int[] blockMax = new int[ numDimensions ];
+		final int[] blockPos = new int[ numDimensions ];
+
+		for ( int i = 0; i < numTiles; ++i )
+			if ( getBlockRange( i, blockMin, blockMax ) )
+			{
+				System.arraycopy( blockMin, 0, blockPos, 0, numDimensions );
+				do { ++count[ getBlockIndex( blockPos ) ]; } while ( next( blockPos, blockMin, blockMax, 0 ) );
+			}
+
+		// and fill in their ids
+		this.blockTiles = new int[ numBlocks ][];
+
+		for ( int b = 0; b < numBlocks; ++b )
+		{
+			blockTiles[ b ] = new int[ count[ b ] ];
+			count[ b ] = 0;
+		}
+
+		for ( int i = 0; i < numTiles; ++i )
+			if ( getBlockRange( i, blockMin, blockMax ) )
+			{
+				System.arraycopy( blockMin, 0, blockPos, 0, numDimensions );
+				do
+				{
+					final int b = getBlockIndex( blockPos );
+					blockTiles[ b ][ count[ b ]++ ] = i;
+				}
+				while ( next( blockPos, blockMin, blockMax, 0 ) );
+			}
+	}
+
+	/**
+	 * @return - the number of blocks the output is divided into
+	 */
+	public int getNumBlocks() { return numBlocks; }
+
+	/**
+	 * @return - the number of tiles in the index
+	 */
+	public int getNumTiles() { return numTiles; }
+
+	/**
+	 * @return - the size of the blocks (the blocks at the border of the output image can be smaller)
+	 */
+	public int[] getBlockSize() { return blockSize.clone(); }
+
+	/**
+	 * @param block - the index of the block
+	 * @return - the ids of all tiles that might contribute to this block
+	 */
+	public int[] getTiles( final int block ) { return blockTiles[ block ]; }
+
+	/**
+	 * @return - the maximal number of tiles that overlap with one block
+	 */
+	public int getMaxTilesPerBlock()
+	{
+		int max = 0;
+
+		for ( final int[] tiles : blockTiles )
+			max = Math.max( max, tiles.length );
+
+		return max;
+	}
+
+	/**
+	 * @param block - the index of the block
+	 * @param min - the first pixel of the block in output coordinates, will be computed
+	 * @param max - the last pixel of the block in output coordinates (inclusive), will be computed
+	 */
+	public void getBlockBounds( final int block, final int[] min, final int[] max )
+	{
+		int b = block;
+
+		for ( int d = 0; d < numDimensions; ++d )
+		{
+			final int pos = b % numBlocksPerDim[ d ];
+			b /= numBlocksPerDim[ d ];
+
+			min[ d ] = pos * blockSize[ d ];
+			max[ d ] = Math.min( size[ d ], min[ d ] + blockSize[ d ] ) - 1;
+		}
+	}
+
+	/**
+	 * @param tile - the id of the tile
+	 * @param min - the first pixel of the bounding box in output coordinates, will be computed
+	 * @param max - the last pixel of the bounding box in output coordinates (inclusive), will be computed
+	 * @return - false if the tile is not visible in the output image
+	 */
+	public boolean getTileBounds( final int tile, final int[] min, final int[] max )
+	{
+		for ( int d = 0; d < numDimensions; ++d )
+		{
+			min[ d ] = tileMin[ tile ][ d ];
+			max[ d ] = tileMax[ tile ][ d ];
+
+			if ( min[ d ] > max[ d ] )
+				return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Marks all blocks the tile might contribute to
+	 *
+	 * @param tile - the id of the tile
+	 * @param blocks - one entry per block, the blocks of the tile are set to true
+	 */
+	public void markBlocks( final int tile, final boolean[] blocks )
+	{
+		final int[] blockMin = new int[ numDimensions ];
+		final int[] blockMax = new int[ numDimensions ];
+
+		if ( !getBlockRange( tile, blockMin, blockMax ) )
+			return;
+
+		final int[] blockPos = blockMin.clone();
+
+		do { blocks[ getBlockIndex( blockPos ) ] = true; } while ( next( blockPos, blockMin, blockMax, 0 ) );
+	}
+
+	/**
+	 * Moves to the next position inside the interval [min, max], starting with dimension firstDim.
+	 * Iterating with firstDim = 1 moves from row to row.
+	 *
+	 * @param position - the current position, will be updated
+	 * @param min - the first position (inclusive)
+	 * @param max - the last position (inclusive)
+	 * @param firstDim - the first dimension that is incremented
+	 * @return - false if there is no next position
+	 */
+	public static boolean next( final int[] position, final int[] min, final int[] max, final int firstDim )
+	{
+		for ( int d = firstDim; d < position.length; ++d )
+		{
+			if ( position[ d ] < max[ d ] )
+			{
+				++position[ d ];
+				return true;
+			}
+
+			position[ d ] = min[ d ];
+		}
+
+		return false;
+	}
+
+	/**
+	 * @param numDimensions - 2 or 3
+	 * @return - a copy of the default block size for this dimensionality
+	 */
+	public static int[] getDefaultBlockSize( final int numDimensions )
+	{
+		if ( numDimensions == 2 )
+			return blockSize2d.clone();
+		else
+			return blockSize3d.clone();
+	}
+
+	/**
+	 * @param input - all input images
+	 * @return - the dimensions of all input images imgSizes[ image ][ x, y, (z) ]
+	 */
+	public static int[][] getImageSizes( final List< ? extends ImageInterpolation< ? > > input )
+	{
+		final int[][] imgSizes = new int[ input.size() ][];
+
+		for ( int i = 0; i < input.size(); ++i )
+			imgSizes[ i ] = input.get( i ).getImage().getDimensions();
+
+		return imgSizes;
+	}
+
+	protected int getBlockIndex( final int[] blockPos )
+	{
+		int b = blockPos[ numDimensions - 1 ];
+
+		for ( int d = numDimensions - 2; d >= 0; --d )
+			b = b * numBlocksPerDim[ d ] + blockPos[ d ];
+
+		return b;
+	}
+
+	protected boolean getBlockRange( final int tile, final int[] blockMin, final int[] blockMax )
+	{
+		for ( int d = 0; d < numDimensions; ++d )
+		{
+			if ( tileMin[ tile ][ d ] > tileMax[ tile ][ d ] )
+				return false;
+
+			blockMin[ d ] = tileMin[ tile ][ d ] / blockSize[ d ];
+			blockMax[ d ] = tileMax[ tile ][ d ] / blockSize[ d ];
+		}
+
+		return true;
+	}
+}
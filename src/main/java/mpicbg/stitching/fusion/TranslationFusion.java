@@ -0,0 +1,424 @@
+package mpicbg.stitching.fusion;
+
+import ij.IJ;
+import ij.ImagePlus;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import mpicbg.imglib.container.imageplus.ImagePlusContainer;
+import mpicbg.imglib.exception.ImgLibException;
+import mpicbg.imglib.image.Image;
+import mpicbg.imglib.multithreading.SimpleMultiThreading;
+import mpicbg.imglib.type.numeric.RealType;
+import mpicbg.models.InvertibleBoundable;
+import mpicbg.models.TranslationModel2D;
+import mpicbg.models.TranslationModel3D;
+
+/**
+ * Fusion for tiles that are only translated. The source and destination spans of each tile are computed once,
+ * then the output is filled row by row directly from the primitive arrays of the ImageJ stacks. Without
+ * interpolation (nearest neighbor) regions that are covered by only one tile are simply copied. With linear
+ * interpolation the fractional shift is the same for the whole tile, so the 4 (2d) or 8 (3d) weights are
+ * computed once per tile and applied to whole rows.
+ */
+public class TranslationFusion
+{
+	/**
+	 * @param models - all models
+	 * @return - true if all models are {@link TranslationModel2D} or {@link TranslationModel3D}
+	 */
+	public static boolean isTranslation( final List< ? extends InvertibleBoundable > models )
+	{
+		for ( final InvertibleBoundable model : models )
+			if ( !( model instanceof TranslationModel2D || model instanceof TranslationModel3D ) )
+				return false;
+
+		return true;
+	}
+
+	/**
+	 * Fuse one slice/volume (one channel)
+	 *
+	 * @param output - same the type of the ImagePlus input, has to be stored in an ImagePlus
+	 * @param input - the input images, have to be stored in an ImagePlus
+	 * @param offset - the offset of the output image
+	 * @param transform - the transformations, all have to be translations
+	 * @param fusion - the {@link PixelFusion} for areas where tiles overlap
+	 * @param displayFusion - show the output while fusing
+	 * @param interpolate - use linear interpolation (subpixel resolution) instead of nearest neighbor
+	 * @return - false if the images are not stored as ImagePlus, nothing has been done then
+	 */
+	public static < T extends RealType< T > > boolean fuse( final Image< T > output, final ArrayList< ? extends ImageInterpolation< ? extends RealType< ? > > > input, final float[] offset,
+			final ArrayList< InvertibleBoundable > transform, final PixelFusion fusion, final boolean displayFusion, final boolean interpolate )
+	{
+		final int numDimensions = output.getNumDimensions();
+		final int numImages = input.size();
+		final int[] size = output.getDimensions();
+
+		final Object[] outPlanes = RowAccess.getPlanes( output );
+
+		if ( outPlanes == null )
+			return false;
+
+		final Tile[] tiles = new Tile[ numImages ];
+
+		for ( int i = 0; i < numImages; ++i )
+		{
+			final Image< ? extends RealType< ? > > image = input.get( i ).getImage();
+			final Object[] planes = RowAccess.getPlanes( image );
+
+			if ( planes == null )
+				return false;
+
+			tiles[ i ] = new Tile( planes, image.getDimensions(), input.get( i ).getCorrection(), transform.get( i ), offset, size, interpolate );
+		}
+
+		IJ.showProgress( 0 );
+
+		// which tiles contribute to which block of the output image
+		final TileIndex index = new TileIndex( size, offset, input, transform );
+		final FusionPlanner planner = new FusionPlanner( getMin( tiles ), getMax( tiles ) );
+		final int blockWidth = Math.min( size[ 0 ], index.getBlockSize()[ 0 ] );
+
+		// run multithreaded
+		final AtomicInteger ai = new AtomicInteger(0);
+		final Thread[] threads = Fusion.newThreads();
+
+		// the threads take one block after the other
+		final BlockScheduler scheduler = new BlockScheduler( index );
+
+		for (int ithread = 0; ithread < threads.length; ++ithread)
+			threads[ithread] = new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					// Thread ID
+					final int myNumber = ai.getAndIncrement();
+
+					// only the first thread does preview and update the status bar
+					long lastDraw = 0;
+					ImagePlus fusionImp = null;
+
+					if ( displayFusion && myNumber == 0 )
+					{
+						try
+						{
+							fusionImp = ((ImagePlusContainer<?, ?>) output.getContainer()).getImagePlus();
+							fusionImp.setTitle( "fusing..." );
+							fusionImp.show();
+						}
+						catch ( ImgLibException e )
+						{
+							IJ.log( "Output image has no ImageJ type: " + e );
+						}
+					}
+
+					// the scratch data of this thread
+					final RowPixelFusion myFusion = PixelFusionRowAdapter.wrap( fusion.copy() );
+
+					final float[] values = new float[ blockWidth ];
+					final float[] local = new float[ numDimensions ];
+					final float[] step = new float[ numDimensions ];
+					step[ 0 ] = 1;
+					final float[] row = new float[ blockWidth ];
+					final float[][] scratch = new float[ 4 ][ blockWidth + 1 ];
+
+					final int[] min = new int[ numDimensions ];
+					final int[] max = new int[ numDimensions ];
+					final int[] pos = new int[ numDimensions ];
+
+					for ( int block = scheduler.nextBlock(); block >= 0; block = scheduler.nextBlock() )
+					{
+						if ( myNumber == 0 )
+						{
+							lastDraw = Fusion.drawFusion( lastDraw, fusionImp );
+							IJ.showProgress( scheduler.getProgress() );
+						}
+
+						final int[] blockTiles = index.getTiles( block );
+						index.getBlockBounds( block, min, max );
+
+						// the bounds of the tiles are exact, so every tile of a region covers all of its pixels
+						for ( final FusionPlanner.Region region : planner.plan( min, max, blockTiles ) )
+						{
+							final int k = region.tiles.length;
+
+							if ( k == 0 )
+								continue;
+
+							final int width = region.max[ 0 ] - region.min[ 0 ] + 1;
+							final int x0 = region.min[ 0 ];
+							System.arraycopy( region.min, 0, pos, 0, numDimensions );
+
+							do
+							{
+								final Object outPlane = outPlanes[ numDimensions == 3 ? pos[ 2 ] : 0 ];
+								final int outIndex = pos[ 1 ] * size[ 0 ] + x0;
+
+								if ( k == 1 && !interpolate && tiles[ region.tiles[ 0 ] ].correction == null )
+								{
+									// only one tile, we can just copy
+									final Tile tile = tiles[ region.tiles[ 0 ] ];
+									RowAccess.copy( tile.getPlane( pos ), tile.getIndex( pos, x0 ), outPlane, outIndex, width );
+								}
+								else if ( k == 1 && !interpolate )
+								{
+									// only one tile that needs to be corrected
+									tiles[ region.tiles[ 0 ] ].read( pos, x0, width, row );
+									RowAccess.write( row, 0, outPlane, outIndex, width );
+								}
+								else if ( k == 1 )
+								{
+									// only one tile, just interpolate it
+									tiles[ region.tiles[ 0 ] ].interpolate( pos, x0, width, row, 0, scratch );
+									RowAccess.write( row, 0, outPlane, outIndex, width );
+								}
+								else
+								{
+									myFusion.clearRow( width );
+
+									// read the row of all tiles and fuse them
+									for ( final int i : region.tiles )
+									{
+										final Tile tile = tiles[ i ];
+
+										if ( interpolate )
+											tile.interpolate( pos, x0, width, values, 0, scratch );
+										else
+											tile.read( pos, x0, width, values );
+
+										local[ 0 ] = x0 + tile.localOffset[ 0 ];
+
+										for ( int d = 1; d < numDimensions; ++d )
+											local[ d ] = pos[ d ] + tile.localOffset[ d ];
+
+										myFusion.addValues( values, 0, width, i, local, step );
+									}
+
+									myFusion.getValues( row );
+									RowAccess.write( row, 0, outPlane, outIndex, width );
+								}
+							}
+							while ( TileIndex.next( pos, region.min, region.max, 1 ) );
+						}
+					}
+
+					if ( fusionImp != null )
+						fusionImp.hide();
+				}
+			});
+
+		SimpleMultiThreading.startAndJoin( threads );
+
+		return true;
+	}
+
+	protected static int[][] getMin( final Tile[] tiles )
+	{
+		final int[][] min = new int[ tiles.length ][];
+
+		for ( int i = 0; i < tiles.length; ++i )
+			min[ i ] = tiles[ i ].min;
+
+		return min;
+	}
+
+	protected static int[][] getMax( final Tile[] tiles )
+	{
+		final int[][] max = new int[ tiles.length ][];
+
+		for ( int i = 0; i < tiles.length; ++i )
+			max[ i ] = tiles[ i ].max;
+
+		return max;
+	}
+
+	/**
+	 * The source planes of one tile and where it is located in the output image
+	 */
+	protected static class Tile
+	{
+		final Object[] planes;
+		final int[] dimensions;
+
+		// applied to every pixel that is read, can be null
+		final FlatFieldCorrection correction;
+
+		// output position + shift = position in the tile (nearest neighbor) or the first of the two pixels that are interpolated
+		final int[] shift;
+
+		// the linear interpolation weights, weights[ ( dz * 2 + dy ) * 2 + dx ] for the pixel at shift + ( dx, dy, dz ), null if nearest neighbor
+		final float[] weights;
+
+		// the first and last output pixel covered by the tile (inclusive)
+		final int[] min, max;
+
+		// output position + localOffset = local position in the tile as computed by the inverse transformation
+		final float[] localOffset;
+
+		public Tile( final Object[] planes, final int[] dimensions, final FlatFieldCorrection correction, final InvertibleBoundable model,
+				final float[] offset, final int[] outputSize, final boolean interpolate )
+		{
+			final int numDimensions = dimensions.length;
+
+			this.planes = planes;
+			this.dimensions = dimensions;
+			this.correction = correction;
+			this.shift = new int[ numDimensions ];
+			this.min = new int[ numDimensions ];
+			this.max = new int[ numDimensions ];
+			this.localOffset = new float[ numDimensions ];
+
+			// the translation of the tile
+			final float[] translation = new float[ numDimensions ];
+			model.applyInPlace( translation );
+
+			final float[] fraction = new float[ numDimensions ];
+
+			for ( int d = 0; d < numDimensions; ++d )
+			{
+				final double l = (double)offset[ d ] - translation[ d ];
+
+				// the nearest neighbor of output position x is at round( x + l ),
+				// the tile covers all x with 0 <= x + l <= dimension - 1
+				localOffset[ d ] = (float)l;
+
+				if ( interpolate )
+				{
+					shift[ d ] = (int)Math.floor( l );
+					fraction[ d ] = (float)( l - shift[ d ] );
+				}
+				else
+				{
+					shift[ d ] = (int)Math.floor( l + 0.5 );
+				}
+
+				min[ d ] = Math.max( 0, (int)Math.ceil( -l ) );
+				max[ d ] = Math.min( outputSize[ d ] - 1, (int)Math.floor( dimensions[ d ] - 1 - l ) );
+			}
+
+			if ( interpolate )
+			{
+				this.weights = new float[ 1 << numDimensions ];
+
+				for ( int w = 0; w < weights.length; ++w )
+				{
+					weights[ w ] = 1;
+
+					for ( int d = 0; d < numDimensions; ++d )
+						weights[ w ] *= ( ( w >> d ) & 1 ) == 1 ? fraction[ d ] : 1 - fraction[ d ];
+				}
+			}
+			else
+			{
+				this.weights = null;
+			}
+		}
+
+		/**
+		 * Linearly interpolates a span of one output row, the span has to be covered by the tile
+		 *
+		 * @param pos - the output position (y, z are used)
+		 * @param x - the first x-coordinate in the output
+		 * @param length - how many pixels
+		 * @param target - where to put the interpolated values
+		 * @param targetOffset - the first index in target
+		 * @param scratch - four temporary rows of at least length + 1
+		 */
+		public void interpolate( final int[] pos, final int x, final int length, final float[] target, final int targetOffset, final float[][] scratch )
+		{
+			final int sx = x + shift[ 0 ];
+			final int y0 = pos[ 1 ] + shift[ 1 ];
+
+			// at the last pixel the second pixel can be outside, but then its weight is zero
+			final int y1 = Math.min( y0 + 1, dimensions[ 1 ] - 1 );
+			final int n = Math.min( length + 1, dimensions[ 0 ] - sx );
+
+			if ( pos.length == 2 )
+			{
+				final float[] r0 = readRow( planes[ 0 ], y0, sx, n, length, scratch[ 0 ] );
+				final float[] r1 = readRow( planes[ 0 ], y1, sx, n, length, scratch[ 1 ] );
+
+				final float w0 = weights[ 0 ], w1 = weights[ 1 ], w2 = weights[ 2 ], w3 = weights[ 3 ];
+
+				for ( int i = 0; i < length; ++i )
+					target[ targetOffset + i ] = w0 * r0[ i ] + w1 * r0[ i + 1 ] + w2 * r1[ i ] + w3 * r1[ i + 1 ];
+			}
+			else
+			{
+				final int z0 = pos[ 2 ] + shift[ 2 ];
+				final int z1 = Math.min( z0 + 1, dimensions[ 2 ] - 1 );
+
+				final float[] r0 = readRow( planes[ z0 ], y0, sx, n, length, scratch[ 0 ] );
+				final float[] r1 = readRow( planes[ z0 ], y1, sx, n, length, scratch[ 1 ] );
+				final float[] r2 = readRow( planes[ z1 ], y0, sx, n, length, scratch[ 2 ] );
+				final float[] r3 = readRow( planes[ z1 ], y1, sx, n, length, scratch[ 3 ] );
+
+				final float w0 = weights[ 0 ], w1 = weights[ 1 ], w2 = weights[ 2 ], w3 = weights[ 3 ];
+				final float w4 = weights[ 4 ], w5 = weights[ 5 ], w6 = weights[ 6 ], w7 = weights[ 7 ];
+
+				for ( int i = 0; i < length; ++i )
+					target[ targetOffset + i ] =
+						w0 * r0[ i ] + w1 * r0[ i + 1 ] + w2 * r1[ i ] + w3 * r1[ i + 1 ] +
+						w4 * r2[ i ] + w5 * r2[ i + 1 ] + w6 * r3[ i ] + w7 * r3[ i + 1 ];
+			}
+		}
+
+		protected float[] readRow( final Object plane, final int y, final int x, final int n, final int length, final float[] row )
+		{
+			RowAccess.read( plane, y * dimensions[ 0 ] + x, row, 0, n );
+
+			if ( correction != null )
+				correction.correctRow( row, 0, y * dimensions[ 0 ] + x, n );
+
+			// the last pixel of the tile has no right neighbor
+			if ( n == length )
+				row[ length ] = row[ length - 1 ];
+
+			return row;
+		}
+
+		/**
+		 * Reads a span of one output row (nearest neighbor), the span has to be covered by the tile
+		 *
+		 * @param pos - the output position (y, z are used)
+		 * @param x - the first x-coordinate in the output
+		 * @param length - how many pixels
+		 * @param target - where to put the values, starting at 0
+		 */
+		public void read( final int[] pos, final int x, final int length, final float[] target )
+		{
+			final int index = getIndex( pos, x );
+
+			RowAccess.read( getPlane( pos ), index, target, 0, length );
+
+			if ( correction != null )
+				correction.correctRow( target, 0, index, length );
+		}
+
+		/**
+		 * @param pos - the output position
+		 * @return - the plane of the tile that contains this output position
+		 */
+		public Object getPlane( final int[] pos )
+		{
+			if ( pos.length == 3 )
+				return planes[ pos[ 2 ] + shift[ 2 ] ];
+			else
+				return planes[ 0 ];
+		}
+
+		/**
+		 * @param pos - the output position (only y is used)
+		 * @param x - the x-coordinate in the output
+		 * @return - the index inside the plane of the tile
+		 */
+		public int getIndex( final int[] pos, final int x )
+		{
+			return ( pos[ 1 ] + shift[ 1 ] ) * dimensions[ 0 ] + x + shift[ 0 ];
+		}
+	}
+}
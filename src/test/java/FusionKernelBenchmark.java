@@ -0,0 +1,117 @@
+import java.util.Random;
+
+import mpicbg.stitching.fusion.AveragePixelFusion;
+import mpicbg.stitching.fusion.AveragePixelFusionIgnoreZero;
+import mpicbg.stitching.fusion.BlendingPixelFusion;
+import mpicbg.stitching.fusion.MaxPixelFusion;
+import mpicbg.stitching.fusion.MinPixelFusion;
+import mpicbg.stitching.fusion.PixelFusion;
+import mpicbg.stitching.fusion.RowPixelFusion;
+
+/**
+ * Compares the row kernels of the fusions (clearRow/addValues/getValues, see RowKernels) with the per-pixel
+ * path (clear/addValue/getValue) that fuseBlock used before, on the same random overlapping tiles. Prints the
+ * time per output pixel and the largest difference between both results.
+ *
+ * Usage: java FusionKernelBenchmark [rowLength] [numTiles] [numRows]
+ */
+public class FusionKernelBenchmark
+{
+	public static void main( final String... args )
+	{
+		final int rowLength = args.length > 0 ? Integer.parseInt( args[ 0 ] ) : 2048;
+		final int numTiles = args.length > 1 ? Integer.parseInt( args[ 1 ] ) : 4;
+		final int numRows = args.length > 2 ? Integer.parseInt( args[ 2 ] ) : 2000;
+
+		// every tile covers the whole row, it is shifted so that the blending weights differ
+		final int[][] imgSizes = new int[ numTiles ][];
+		for ( int i = 0; i < numTiles; ++i )
+			imgSizes[ i ] = new int[] { rowLength + numTiles * 16, numRows + numTiles * 16 };
+
+		final Random rnd = new Random( 42 );
+		final float[][] values = new float[ numTiles ][ rowLength ];
+
+		for ( int i = 0; i < numTiles; ++i )
+			for ( int x = 0; x < rowLength; ++x )
+				values[ i ][ x ] = rnd.nextInt( 10 ) == 0 ? 0 : rnd.nextInt( 65536 );
+
+		final RowPixelFusion[] fusions = new RowPixelFusion[] {
+				new AveragePixelFusion(), new AveragePixelFusionIgnoreZero(), new BlendingPixelFusion( imgSizes ),
+				new MaxPixelFusion(), new MinPixelFusion() };
+
+		System.out.println( "row length " + rowLength + ", " + numTiles + " tiles, " + numRows + " rows" );
+
+		for ( final RowPixelFusion fusion : fusions )
+		{
+			final float[] rowResult = new float[ rowLength ];
+			final float[] pixelResult = new float[ rowLength ];
+
+			double rowTime = Double.MAX_VALUE, pixelTime = Double.MAX_VALUE;
+
+			// the first rounds warm up the JIT compiler, the best of the rest is reported
+			for ( int round = 0; round < 10; ++round )
+			{
+				long start = System.nanoTime();
+
+				for ( int y = 0; y < numRows; ++y )
+					fuseRows( fusion, values, y, rowResult );
+
+				rowTime = Math.min( rowTime, (double)( System.nanoTime() - start ) / ( (double)numRows * rowLength ) );
+
+				start = System.nanoTime();
+
+				for ( int y = 0; y < numRows; ++y )
+					fusePixels( fusion, values, y, pixelResult );
+
+				pixelTime = Math.min( pixelTime, (double)( System.nanoTime() - start ) / ( (double)numRows * rowLength ) );
+			}
+
+			double maxDiff = 0;
+
+			for ( int x = 0; x < rowLength; ++x )
+				maxDiff = Math.max( maxDiff, Math.abs( rowResult[ x ] - pixelResult[ x ] ) );
+
+			System.out.println( String.format( "%-30s rows %6.2f ns/px, pixels %6.2f ns/px, max difference %g",
+					fusion.getClass().getSimpleName(), rowTime, pixelTime, maxDiff ) );
+		}
+	}
+
+	protected static void fuseRows( final RowPixelFusion fusion, final float[][] values, final int y, final float[] result )
+	{
+		final int rowLength = result.length;
+		final float[] localPosition = new float[ 2 ];
+		final float[] localStep = new float[] { 1, 0 };
+
+		fusion.clearRow( rowLength );
+
+		for ( int i = 0; i < values.length; ++i )
+		{
+			localPosition[ 0 ] = i * 16;
+			localPosition[ 1 ] = y + i * 16;
+
+			fusion.addValues( values[ i ], 0, rowLength, i, localPosition, localStep );
+		}
+
+		fusion.getValues( result );
+	}
+
+	protected static void fusePixels( final PixelFusion fusion, final float[][] values, final int y, final float[] result )
+	{
+		final float[] localPosition = new float[ 2 ];
+
+		for ( int x = 0; x < result.length; ++x )
+		{
+			fusion.clear();
+
+			for ( int i = 0; i < values.length; ++i )
+			{
+				localPosition[ 0 ] = x + i * 16;
+				localPosition[ 1 ] = y + i * 16;
+
+				fusion.addValue( values[ i ][ x ], i, localPosition );
+			}
+
+			result[ x ] = fusion.getValue();
+		}
+	}
+}